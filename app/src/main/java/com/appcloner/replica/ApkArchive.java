@@ -0,0 +1,321 @@
+package com.appcloner.replica;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read-only view of an APK built from its central directory.
+ * Entry metadata (method, CRC, sizes) comes from the central directory, so it is
+ * correct even for entries written with data descriptors. The central directory is
+ * memory-mapped and parsed once; entry lookup by name is a hash lookup and nothing
+ * before an entry's local header is ever read.
+ */
+final class ApkArchive implements Closeable {
+    private static final String TAG = "ApkArchive";
+    static final int METHOD_STORED   = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int CD_SIG   = 0x02014b50;
+    private static final int LFH_SIG  = 0x04034b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int LFH_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private final FileChannel channel;
+    private final Closeable owner;
+    private final List<Entry> entries;
+    private final Map<String, Entry> byName;
+    private final long centralDirOffset;
+
+    /**
+     * Opens an APK behind a Uri. file:// Uris and seekable content descriptors are read in
+     * place; anything else is spooled to the cache directory first.
+     */
+    static ApkArchive open(Context ctx, Uri apk) throws IOException {
+        return open(ctx, apk, null);
+    }
+
+    /** As {@link #open(Context, Uri)}, counting a cache spool against {@code progress}. */
+    static ApkArchive open(Context ctx, Uri apk, CloneProgress progress) throws IOException {
+        if ("file".equals(apk.getScheme()) && apk.getPath() != null) {
+            return new ApkArchive(new File(apk.getPath()));
+        }
+        ParcelFileDescriptor pfd = ctx.getContentResolver().openFileDescriptor(apk, "r");
+        if (pfd == null) {
+            throw new IOException("Cannot open APK: " + apk);
+        }
+        FileInputStream fis = new FileInputStream(pfd.getFileDescriptor());
+        try {
+            return new ApkArchive(fis.getChannel(), () -> {
+                fis.close();
+                pfd.close();
+            });
+        } catch (IOException e) {
+            // The descriptor is closed by now; pipes and other non-seekable sources end up here
+            Log.w(TAG, "APK is not seekable, spooling to cache: " + e.getMessage());
+        }
+        File spool = new File(ctx.getCacheDir(), "source_" + System.nanoTime() + ".apk");
+        try (InputStream in = ctx.getContentResolver().openInputStream(apk);
+             OutputStream out = new FileOutputStream(spool)) {
+            if (in == null) throw new IOException("Cannot open APK: " + apk);
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+        } catch (IOException e) {
+            spool.delete();
+            throw e;
+        }
+        long spooled = spool.length();
+        if (progress != null) progress.tempAllocated(spooled);
+        RandomAccessFile raf = new RandomAccessFile(spool, "r");
+        try {
+            return new ApkArchive(raf.getChannel(), () -> {
+                raf.close();
+                spool.delete();
+                if (progress != null) progress.tempReleased(spooled);
+            });
+        } catch (IOException e) {
+            spool.delete();
+            if (progress != null) progress.tempReleased(spooled);
+            throw e;
+        }
+    }
+
+    ApkArchive(File file) throws IOException {
+        this(new RandomAccessFile(file, "r"));
+    }
+
+    private ApkArchive(RandomAccessFile raf) throws IOException {
+        this(raf.getChannel(), raf);
+    }
+
+    ApkArchive(FileChannel channel, Closeable owner) throws IOException {
+        this.channel = channel;
+        this.owner = owner;
+        try {
+            ByteBuffer eocd = findEocd();
+            int count = eocd.getShort(10) & 0xffff;
+            long cdSize = eocd.getInt(12) & 0xffffffffL;
+            centralDirOffset = eocd.getInt(16) & 0xffffffffL;
+            if (count == 0xffff || cdSize == 0xffffffffL || centralDirOffset == 0xffffffffL) {
+                throw new IOException("ZIP64 archives are not supported");
+            }
+            if (centralDirOffset + cdSize > channel.size()) {
+                throw new IOException("Central directory out of range");
+            }
+            ByteBuffer cd = map(centralDirOffset, cdSize);
+            List<Entry> list = new ArrayList<>(count);
+            Map<String, Entry> map = new LinkedHashMap<>(count * 2);
+            while (cd.remaining() >= 46) {
+                int start = cd.position();
+                if (cd.getInt(start) != CD_SIG) break;
+                Entry e = new Entry();
+                e.flags = cd.getShort(start + 8) & 0xffff;
+                e.method = cd.getShort(start + 10) & 0xffff;
+                e.time = cd.getShort(start + 12) & 0xffff;
+                e.date = cd.getShort(start + 14) & 0xffff;
+                e.crc = cd.getInt(start + 16) & 0xffffffffL;
+                e.compressedSize = cd.getInt(start + 20) & 0xffffffffL;
+                e.size = cd.getInt(start + 24) & 0xffffffffL;
+                int nameLen = cd.getShort(start + 28) & 0xffff;
+                int extraLen = cd.getShort(start + 30) & 0xffff;
+                int commentLen = cd.getShort(start + 32) & 0xffff;
+                e.localHeaderOffset = cd.getInt(start + 42) & 0xffffffffL;
+                byte[] nameBytes = new byte[nameLen];
+                cd.position(start + 46);
+                cd.get(nameBytes);
+                e.name = new String(nameBytes, StandardCharsets.UTF_8);
+                cd.position(start + 46 + nameLen + extraLen + commentLen);
+                list.add(e);
+                if (!map.containsKey(e.name)) map.put(e.name, e);
+            }
+            if (list.size() != count) {
+                throw new IOException("Central directory truncated: " + list.size() + " of " + count + " entries");
+            }
+            entries = Collections.unmodifiableList(list);
+            byName = map;
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    Entry getEntry(String name) {
+        return byName.get(name);
+    }
+
+    long getCentralDirOffset() {
+        return centralDirOffset;
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /** Offset of the first byte of the entry's (possibly compressed) data. */
+    long getDataOffset(Entry e) throws IOException {
+        if (e.dataOffset < 0) {
+            ByteBuffer lfh = read(e.localHeaderOffset, LFH_SIZE);
+            if (lfh.getInt(0) != LFH_SIG) {
+                throw new IOException("Bad local header for " + e.name);
+            }
+            int nameLen = lfh.getShort(26) & 0xffff;
+            int extraLen = lfh.getShort(28) & 0xffff;
+            e.dataOffset = e.localHeaderOffset + LFH_SIZE + nameLen + extraLen;
+        }
+        return e.dataOffset;
+    }
+
+    /** Maps the entry's raw (possibly compressed) bytes without copying them. */
+    ByteBuffer mapRawData(Entry e) throws IOException {
+        return map(getDataOffset(e), e.compressedSize);
+    }
+
+    /** Opens the uncompressed content of an entry. */
+    InputStream openStream(Entry e) throws IOException {
+        InputStream raw = new ChannelInputStream(channel, getDataOffset(e), e.compressedSize);
+        if (e.method == METHOD_STORED) return raw;
+        if (e.method != METHOD_DEFLATED) {
+            throw new IOException("Unsupported compression method " + e.method + " for " + e.name);
+        }
+        Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(raw, inflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+
+    byte[] readBytes(Entry e) throws IOException {
+        if (e.size > Integer.MAX_VALUE - 8) throw new IOException("Entry too large: " + e.name);
+        byte[] out = new byte[(int) e.size];
+        try (InputStream in = openStream(e)) {
+            int off = 0;
+            while (off < out.length) {
+                int n = in.read(out, off, out.length - off);
+                if (n < 0) throw new EOFException("Truncated entry: " + e.name);
+                off += n;
+            }
+        }
+        return out;
+    }
+
+    private ByteBuffer map(long offset, long length) throws IOException {
+        if (length == 0) return ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, offset + buf.position());
+            if (n < 0) throw new EOFException("Unexpected end of archive");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private ByteBuffer findEocd() throws IOException {
+        long size = channel.size();
+        if (size < EOCD_MIN_SIZE) throw new IOException("Not a ZIP archive");
+        int tail = (int) Math.min(size, EOCD_MIN_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer buf = map(size - tail, tail);
+        for (int i = tail - EOCD_MIN_SIZE; i >= 0; i--) {
+            if (buf.getInt(i) == EOCD_SIG) {
+                int commentLen = buf.getShort(i + 20) & 0xffff;
+                if (i + EOCD_MIN_SIZE + commentLen == tail) {
+                    buf.position(i);
+                    return buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+        }
+        throw new IOException("End of central directory not found");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (owner != null) {
+            owner.close();
+        } else {
+            channel.close();
+        }
+    }
+
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        ChannelInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (n < 0) return -1;
+            position += n;
+            remaining -= n;
+            return n;
+        }
+    }
+
+    static final class Entry {
+        String name;
+        int flags;
+        int method;
+        int time;
+        int date;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+        long dataOffset = -1;
+
+        String getName() {
+            return name;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
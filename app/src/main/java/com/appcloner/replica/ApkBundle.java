@@ -0,0 +1,223 @@
+package com.appcloner.replica;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.net.Uri;
+import android.util.Log;
+import com.reandroid.arsc.chunk.xml.ResXmlAttribute;
+import com.reandroid.arsc.chunk.xml.ResXmlDocument;
+import com.reandroid.arsc.chunk.xml.ResXmlElement;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A base APK and its splits, opened for cloning. Accepts a plain APK, an APKS/XAPK
+ * container (the inner APKs are unpacked to the cache once), or a list of split files.
+ * Splits are told apart by the {@code split} attribute of their manifests.
+ */
+final class ApkBundle implements Closeable {
+    private static final String TAG = "ApkBundle";
+
+    static final class Split {
+        /** Split name from the manifest; {@code null} for the base. */
+        final String name;
+        final ApkArchive archive;
+
+        Split(String name, ApkArchive archive) {
+            this.name = name;
+            this.archive = archive;
+        }
+
+        boolean isBase() {
+            return name == null;
+        }
+
+        /** File name used for the rewritten split in an output set. */
+        String outputName() {
+            return isBase() ? "base.apk" : "split_" + name + ".apk";
+        }
+    }
+
+    private final List<Split> splits;
+    private final File unpackDir;
+
+    private ApkBundle(List<Split> splits, File unpackDir) throws IOException {
+        Split base = null;
+        for (Split s : splits) {
+            if (!s.isBase()) continue;
+            if (base != null) throw new IOException("More than one base APK in bundle");
+            base = s;
+        }
+        if (base == null) throw new IOException("No base APK in bundle");
+        // Base first, the rest in a stable order
+        List<Split> ordered = new ArrayList<>(splits);
+        ordered.remove(base);
+        Collections.sort(ordered, (a, b) -> a.name.compareTo(b.name));
+        ordered.add(0, base);
+        this.splits = Collections.unmodifiableList(ordered);
+        this.unpackDir = unpackDir;
+    }
+
+    /** Opens a single APK or an APKS/XAPK container. */
+    static ApkBundle open(Context ctx, Uri uri, CloneProgress progress) throws IOException {
+        ApkArchive outer = ApkArchive.open(ctx, uri, progress);
+        if (outer.getEntry(ApkRewriter.ANDROID_MANIFEST) != null) {
+            return ofArchives(Collections.singletonList(outer), null);
+        }
+        File dir = new File(ctx.getCacheDir(), "source_bundle_" + System.nanoTime());
+        List<ApkArchive> inner = new ArrayList<>();
+        try (ApkArchive container = outer) {
+            if (!dir.mkdirs()) throw new IOException("Cannot create " + dir);
+            for (ApkArchive.Entry e : container.getEntries()) {
+                String name = e.getName();
+                if (e.isDirectory() || !name.toLowerCase(Locale.US).endsWith(".apk")) continue;
+                if (name.contains("../") || name.contains("..\\")) continue;
+                // bundletool's .apks may also carry standalone APKs for pre-L devices
+                if (name.startsWith("standalones/")) continue;
+                File f = new File(dir, "split" + inner.size() + ".apk");
+                unpack(container, e, f);
+                inner.add(new ApkArchive(f));
+            }
+            if (inner.isEmpty()) throw new IOException("Neither an APK nor an APK bundle: " + uri);
+            Log.d(TAG, "Unpacked " + inner.size() + " APKs from bundle");
+            return ofArchives(inner, dir);
+        } catch (IOException | RuntimeException e) {
+            for (ApkArchive a : inner) closeQuietly(a);
+            deleteRec(dir);
+            throw e;
+        }
+    }
+
+    /** Opens base and split APK files in place. */
+    static ApkBundle open(List<File> files) throws IOException {
+        List<ApkArchive> archives = new ArrayList<>(files.size());
+        try {
+            for (File f : files) archives.add(new ApkArchive(f));
+            return ofArchives(archives, null);
+        } catch (IOException | RuntimeException e) {
+            for (ApkArchive a : archives) closeQuietly(a);
+            throw e;
+        }
+    }
+
+    /**
+     * The APK files an installed package runs from, base first. They are world-readable,
+     * so clones read them in place instead of copying them out first.
+     */
+    static List<File> installedApks(ApplicationInfo info) {
+        List<File> files = new ArrayList<>();
+        files.add(new File(info.publicSourceDir != null ? info.publicSourceDir : info.sourceDir));
+        if (info.splitSourceDirs != null) {
+            for (String split : info.splitSourceDirs) files.add(new File(split));
+        }
+        return files;
+    }
+
+    private static ApkBundle ofArchives(List<ApkArchive> archives, File unpackDir) throws IOException {
+        List<Split> splits = new ArrayList<>(archives.size());
+        try {
+            for (ApkArchive a : archives) {
+                ApkArchive.Entry manifest = a.getEntry(ApkRewriter.ANDROID_MANIFEST);
+                if (manifest == null) throw new IOException("Split without AndroidManifest.xml");
+                splits.add(new Split(splitName(a.readBytes(manifest)), a));
+            }
+            return new ApkBundle(splits, unpackDir);
+        } catch (IOException | RuntimeException e) {
+            for (ApkArchive a : archives) closeQuietly(a);
+            if (unpackDir != null) deleteRec(unpackDir);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes signed APKs as an APKS container: each one STORED, so it can be installed or
+     * reopened by {@link #open(Context, Uri, CloneProgress)} without inflating.
+     */
+    static void writeSet(Context ctx, List<File> apks, Uri dest) throws IOException {
+        try (ApkOutput target = ApkOutput.open(ctx, dest);
+             ApkZipWriter writer = new ApkZipWriter(target.write)) {
+            for (File apk : apks) writer.writeStored(apk.getName(), apk);
+            writer.finish();
+            target.commit();
+        }
+    }
+
+    List<Split> getSplits() {
+        return splits;
+    }
+
+    Split getBase() {
+        return splits.get(0);
+    }
+
+    boolean isSplit() {
+        return splits.size() > 1;
+    }
+
+    @Override
+    public void close() {
+        for (Split s : splits) closeQuietly(s.archive);
+        if (unpackDir != null) deleteRec(unpackDir);
+    }
+
+    private static String splitName(byte[] manifest) throws IOException {
+        ResXmlDocument doc = new ResXmlDocument();
+        doc.readBytes(new ByteArrayInputStream(manifest));
+        ResXmlElement root = doc.getDocumentElement();
+        if (root == null) throw new IOException("Invalid split manifest");
+        ResXmlAttribute split = root.searchAttributeByName("split");
+        String name = split != null ? split.getValueAsString() : null;
+        return name == null || name.isEmpty() ? null : name;
+    }
+
+    private static void unpack(ApkArchive container, ApkArchive.Entry e, File dest) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(dest)) {
+            if (e.method == ApkArchive.METHOD_STORED) {
+                // Inner APKs are usually stored; copy them without a round trip through the heap
+                FileChannel src = container.getChannel();
+                long pos = container.getDataOffset(e);
+                long end = pos + e.compressedSize;
+                while (pos < end) {
+                    long n = src.transferTo(pos, end - pos, out.getChannel());
+                    if (n <= 0) throw new IOException("Short copy of " + e.getName());
+                    pos += n;
+                }
+                return;
+            }
+            try (InputStream in = container.openStream(e)) {
+                copy(in, out);
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void deleteRec(File f) {
+        if (f.isDirectory()) {
+            File[] kids = f.listFiles();
+            if (kids != null) for (File k : kids) deleteRec(k);
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,155 @@
+package com.appcloner.replica;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInstaller;
+import android.os.Build;
+import android.util.Log;
+import android.widget.Toast;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Installs a base APK and its splits in one {@link PackageInstaller} session, either from
+ * finished files or streamed in as they are signed. The system reports back to
+ * {@link StatusReceiver}, which brings up the confirmation screen.
+ */
+final class ApkInstaller {
+    private static final String TAG = "ApkInstaller";
+    static final String ACTION_INSTALL_STATUS = "com.appcloner.replica.INSTALL_STATUS";
+
+    private ApkInstaller() {}
+
+    /** Commits {@code apks} (base first) as one install; returns the session id. */
+    static int install(Context ctx, List<File> apks) throws IOException {
+        long total = 0;
+        for (File f : apks) total += f.length();
+        try (StreamSession session = open(ctx, total)) {
+            byte[] buf = new byte[256 * 1024];
+            for (File apk : apks) {
+                try (InputStream in = new FileInputStream(apk);
+                     OutputStream out = session.openApk(apk.getName(), apk.length())) {
+                    int n;
+                    while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+                    session.fsync(out);
+                }
+            }
+            session.commit();
+            return session.id;
+        }
+    }
+
+    /**
+     * Opens an install session that APKs can be written into while they are produced.
+     * {@code totalSize} may be -1 when unknown.
+     */
+    static StreamSession open(Context ctx, long totalSize) throws IOException {
+        PackageInstaller.SessionParams params =
+                new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        if (totalSize >= 0) params.setSize(totalSize);
+        return open(ctx, params);
+    }
+
+    /**
+     * Opens a session that replaces some APKs of the installed {@code packageName} and keeps
+     * the rest, so a re-signed base installs without re-sending its splits.
+     */
+    static StreamSession openUpdate(Context ctx, String packageName) throws IOException {
+        PackageInstaller.SessionParams params =
+                new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_INHERIT_EXISTING);
+        params.setAppPackageName(packageName);
+        return open(ctx, params);
+    }
+
+    private static StreamSession open(Context ctx, PackageInstaller.SessionParams params) throws IOException {
+        PackageInstaller installer = ctx.getPackageManager().getPackageInstaller();
+        int sessionId = installer.createSession(params);
+        try {
+            return new StreamSession(ctx, installer, sessionId, installer.openSession(sessionId));
+        } catch (IOException | RuntimeException e) {
+            installer.abandonSession(sessionId);
+            throw e;
+        }
+    }
+
+    /** An open install session; closing it before {@link #commit()} abandons it. */
+    static final class StreamSession implements Closeable {
+        private final Context ctx;
+        private final PackageInstaller installer;
+        private final PackageInstaller.Session session;
+        final int id;
+        private boolean committed;
+
+        private StreamSession(Context ctx, PackageInstaller installer, int id, PackageInstaller.Session session) {
+            this.ctx = ctx;
+            this.installer = installer;
+            this.id = id;
+            this.session = session;
+        }
+
+        /** A stream for one APK of the install. Different APKs may be written concurrently. */
+        OutputStream openApk(String name) throws IOException {
+            return openApk(name, -1);
+        }
+
+        OutputStream openApk(String name, long length) throws IOException {
+            return session.openWrite(name, 0, length);
+        }
+
+        /** Makes sure the bytes written so far reach the disk; call before closing the stream. */
+        void fsync(OutputStream out) throws IOException {
+            session.fsync(out);
+        }
+
+        void commit() {
+            session.commit(statusReceiver(ctx, id).getIntentSender());
+            committed = true;
+            Log.i(TAG, "Committed install session " + id);
+        }
+
+        @Override
+        public void close() {
+            session.close();
+            if (!committed) {
+                installer.abandonSession(id);
+                Log.d(TAG, "Abandoned install session " + id);
+            }
+        }
+    }
+
+    private static PendingIntent statusReceiver(Context ctx, int sessionId) {
+        Intent intent = new Intent(ctx, StatusReceiver.class).setAction(ACTION_INSTALL_STATUS);
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        // The installer fills in the status extras
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) flags |= PendingIntent.FLAG_MUTABLE;
+        return PendingIntent.getBroadcast(ctx, sessionId, intent, flags);
+    }
+
+    public static final class StatusReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+            String message = intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
+            if (status == PackageInstaller.STATUS_PENDING_USER_ACTION) {
+                Intent confirm = intent.getParcelableExtra(Intent.EXTRA_INTENT);
+                if (confirm != null) {
+                    confirm.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                    context.startActivity(confirm);
+                }
+            } else if (status == PackageInstaller.STATUS_SUCCESS) {
+                Log.i(TAG, "Install succeeded: " + intent.getStringExtra(PackageInstaller.EXTRA_PACKAGE_NAME));
+                Toast.makeText(context, "Clone installed", Toast.LENGTH_SHORT).show();
+            } else {
+                Log.w(TAG, "Install failed (" + status + "): " + message);
+                Toast.makeText(context, "Install failed: " + message, Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+}
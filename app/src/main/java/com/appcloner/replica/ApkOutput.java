@@ -0,0 +1,107 @@
+package com.appcloner.replica;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Seekable destination for a rewritten APK. The writer patches local headers in place
+ * and the signer reads the entries back, so the destination is opened read/write.
+ * Destinations that cannot seek are spooled to the cache and copied on {@link #commit()}.
+ */
+final class ApkOutput implements Closeable {
+    private static final String TAG = "ApkOutput";
+
+    final FileChannel write;
+    final FileChannel read;
+    private final Closeable owner;
+    private final File spool;
+    private final Context ctx;
+    private final Uri dest;
+
+    static ApkOutput open(Context ctx, Uri dest) throws IOException {
+        if ("file".equals(dest.getScheme()) && dest.getPath() != null) {
+            RandomAccessFile raf = new RandomAccessFile(dest.getPath(), "rw");
+            return new ApkOutput(raf.getChannel(), raf.getChannel(), raf, null, ctx, dest);
+        }
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = ctx.getContentResolver().openFileDescriptor(dest, "rw");
+        } catch (IOException | SecurityException | IllegalArgumentException e) {
+            Log.w(TAG, "Destination cannot be opened read/write: " + e.getMessage());
+        }
+        if (pfd != null) {
+            FileOutputStream fos = new FileOutputStream(pfd.getFileDescriptor());
+            FileInputStream fis = new FileInputStream(pfd.getFileDescriptor());
+            final ParcelFileDescriptor owned = pfd;
+            try {
+                // Pipes and sockets fail here
+                fos.getChannel().position(0);
+                fis.getChannel().size();
+                return new ApkOutput(fos.getChannel(), fis.getChannel(), () -> {
+                    fis.close();
+                    fos.close();
+                    owned.close();
+                }, null, ctx, dest);
+            } catch (IOException e) {
+                Log.w(TAG, "Destination is not seekable, spooling to cache: " + e.getMessage());
+                fis.close();
+                fos.close();
+                owned.close();
+            }
+        }
+        File spool = new File(ctx.getCacheDir(), "output_" + System.nanoTime() + ".apk");
+        RandomAccessFile raf = new RandomAccessFile(spool, "rw");
+        return new ApkOutput(raf.getChannel(), raf.getChannel(), raf, spool, ctx, dest);
+    }
+
+    private ApkOutput(FileChannel write, FileChannel read, Closeable owner, File spool, Context ctx, Uri dest) {
+        this.write = write;
+        this.read = read;
+        this.owner = owner;
+        this.spool = spool;
+        this.ctx = ctx;
+        this.dest = dest;
+    }
+
+    /** Size of the cache copy standing in for the destination, or 0 when writing in place. */
+    long spooledBytes() {
+        return spool != null ? spool.length() : 0;
+    }
+
+    /** Makes the finished APK visible at the destination. */
+    void commit() throws IOException {
+        if (spool == null) {
+            write.force(false);
+            return;
+        }
+        try (InputStream in = new FileInputStream(spool);
+             OutputStream out = ctx.getContentResolver().openOutputStream(dest)) {
+            if (out == null) {
+                throw new IOException("Cannot open output stream for: " + dest);
+            }
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            owner.close();
+        } finally {
+            if (spool != null) spool.delete();
+        }
+    }
+}
@@ -2,29 +2,27 @@ package com.appcloner.replica;
 
 import android.content.Context;
 import android.net.Uri;
+import android.os.Build;
 import android.util.Log;
-import com.android.apksig.ApkSigner;
 import com.reandroid.arsc.chunk.xml.ResXmlAttribute;
 import com.reandroid.arsc.chunk.xml.ResXmlDocument;
 import com.reandroid.arsc.chunk.xml.ResXmlElement;
 import com.reandroid.arsc.value.ValueType;
 import java.io.*;
+import java.nio.channels.FileChannel;
 import org.json.JSONException;
 import org.json.JSONObject;
-import java.security.KeyStore;
-import java.security.PrivateKey;
-import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
-import java.util.zip.CRC32;
 
 public class ApkProcessor {
     private static final String TAG = "ApkProcessor";
-    private static final String ANDROID_MANIFEST = "AndroidManifest.xml";
     private static final String E_MANIFEST     = "manifest";
     private static final String E_APPLICATION  = "application";
     private static final String E_ACTIVITY     = "activity";
@@ -48,14 +46,11 @@ public class ApkProcessor {
     private static final int ID_ANDROID_LABEL       = 0x01010001;
     private static final int ID_ANDROID_ICON        = 0x01010002;
     private static final int ID_ANDROID_EXTRACT_NATIVE_LIBS = 0x010104ea;
-    private static final Pattern SIG_PATH = Pattern.compile(
-            "^META-INF/(.+\\.(RSA|DSA|EC|SF)|MANIFEST\\.MF)$", Pattern.CASE_INSENSITIVE);
     private static final Pattern DEX_NAME = Pattern.compile(
             "^classes(\\d*)\\.dex$", Pattern.CASE_INSENSITIVE);
-    private static final String KEYSTORE_ASSET = "debug.p12";
-    private static final String STORE_PWD      = "android";
-    private static final String KEY_PWD        = "android";
-    private static final String ALIAS          = "key0";
+    private static final String CLONER_JSON_ENTRY  = "assets/cloner.json";
+    private static final String BUNDLED_DATA_ENTRY = "assets/app_data_export.zip";
+    private static final long MAX_BUNDLED_DATA_SIZE = 100L * 1024 * 1024;
 
     private static final String IPC_PERMISSION = "com.appcloner.replica.permission.REPLICA_IPC";
     private static final String PERM_READ_EXTERNAL = "android.permission.READ_EXTERNAL_STORAGE";
@@ -67,176 +62,527 @@ public class ApkProcessor {
     private static final String CLONING_MODE_KEY = "cloning_mode";
     private static final String CLONING_MODE_REPLACE = "replace_original";
     private static final String CLONING_MODE_GENERATE = "generate_new_package";
+    private static final String NATIVE_LIBS_IN_PLACE_KEY = "native_libs_in_place";
+    private static final String MERGE_HOOK_DEX_KEY = "merge_hook_dex";
+    private static final String DEVICE_TARGETED_KEY = "device_targeted";
+    private static final String PRUNE_DENSITIES_KEY = "prune_densities";
+    private static final String KEEP_LOCALES_KEY = "keep_locales";
+    private static final String VARIANT_COUNT_KEY = "variant_count";
+    private static final int MAX_VARIANTS = 20;
 
     // Use a static authority for the provider
     private static final String PROVIDER_AUTHORITY = "com.applisto.appcloner.DefaultProvider";
 
     private final Context ctx;
+    private CloneProgress progress = new CloneProgress();
 
     public ApkProcessor(Context ctx) {
         this.ctx = ctx.getApplicationContext();
     }
 
-    public void injectHook(Uri inApk, Uri outApk, File hookDex, File clonerJson, File nativeLibDir, File bundledDataFile) throws Exception {
-        if (inApk == null || outApk == null || hookDex == null || clonerJson == null) {
+    /** Progress sink and cancellation flag for the next operation. */
+    ApkProcessor setProgress(CloneProgress progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Clones a single APK. The hook dex and libs are taken pre-compressed from a
+     * {@link HookPayloadCache} zip and spliced raw, so nothing but the manifest and
+     * cloner.json is compressed per clone.
+     */
+    public void injectHook(Uri inApk, Uri outApk, File hookPayloads, File clonerJson, File bundledDataFile) throws Exception {
+        if (inApk == null || outApk == null || hookPayloads == null || clonerJson == null) {
             throw new IllegalArgumentException("Required parameters cannot be null");
         }
-        File tempRoot = new File(ctx.getCacheDir(), "apk_" + System.currentTimeMillis());
-        if (!tempRoot.mkdirs()) throw new IOException("mkdir failed: " + tempRoot);
-        Set<Integer> dexNumbers = new HashSet<>();
-        Set<String> abiDirs = new HashSet<>();
-        byte[] manifestRaw = null;
-
-        String basePath;
-        try {
-            basePath = tempRoot.getCanonicalPath() + File.separator;
-        } catch (IOException e) {
-            deleteRec(tempRoot);
+        JSONObject clonerConfig = readClonerConfig(clonerJson);
+        boolean bundleData = shouldBundleData(bundledDataFile);
+
+        try (ApkArchive source = ApkArchive.open(ctx, inApk, progress);
+             ApkArchive payloads = new ApkArchive(hookPayloads);
+             ApkArchive slimmed = openSlimmed(hookPayloads, clonerConfig)) {
+            // Bundled app data changes from run to run, so only plain clones are cached.
+            // A targeted clone also depends on the device's ABIs, density and language, and
+            // every clone on the rewrite code of this build of the cloner.
+            DeviceTargeting targeting = targeting(clonerConfig);
+            String resultKey = bundleData ? null : CloneResultCache.key(
+                    CloneResultCache.digest(source), CloneResultCache.digest(clonerJson),
+                    hookPayloads.getName(), ApkSigning.signerId(ctx), HookPayloadCache.versionStamp(ctx),
+                    targeting != null ? targeting.key() : "");
+            File cached = resultKey != null ? CloneResultCache.lookup(ctx, resultKey) : null;
+            if (cached != null) {
+                Log.i(TAG, "Reusing cached clone " + cached.getName());
+                copyCachedResult(cached, outApk);
+                return;
+            }
+            ApkRewriter rewriter = hookRewriter(source, payloads, slimmed, clonerJson, clonerConfig,
+                    bundleData ? bundledDataFile : null)
+                    .setNativeLibsInPlace(nativeLibsInPlace(clonerConfig))
+                    .transformManifest(raw -> patchManifest(raw, clonerConfig, 1).manifestBytes);
+            try (ApkOutput target = ApkOutput.open(ctx, outApk)) {
+                rewriter.rewrite(source, target);
+                if (resultKey != null) {
+                    try {
+                        CloneResultCache.store(ctx, resultKey, target.read);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not cache clone result: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "APK injection failed", e);
             throw e;
         }
+        ApkSigning.verifyInBackground(ctx, outApk);
+        Log.i(TAG, "APK injection + signing completed successfully");
+    }
 
-        try (InputStream is = ctx.getContentResolver().openInputStream(inApk);
-             ZipInputStream zis = new ZipInputStream(new BufferedInputStream(is))) {
-            ZipEntry ze;
-            while ((ze = zis.getNextEntry()) != null) {
-                String name = ze.getName();
-                if (name == null || name.isEmpty()) continue;
-                if (SIG_PATH.matcher(name).matches()) continue;
-
-                if (name.startsWith("lib/") && name.endsWith(".so")) {
-                    int slash = name.indexOf('/', 4);
-                    if (slash > 0) abiDirs.add(name.substring(0, slash + 1));
+    /**
+     * Clones a base APK together with its splits. The base gets the manifest patch and the
+     * hook; the splits only follow a package rename. Every APK is rewritten and signed on its
+     * own thread, so the wall time tracks the largest APK rather than the sum. The signed
+     * APKs are written to {@code outDir} and returned base first, ready for one install session.
+     */
+    public List<File> injectHook(ApkBundle bundle, File outDir, File hookPayloads, File clonerJson,
+                                 File bundledDataFile) throws Exception {
+        if (bundle == null || outDir == null || hookPayloads == null || clonerJson == null) {
+            throw new IllegalArgumentException("Required parameters cannot be null");
+        }
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Cannot create " + outDir);
+        }
+        List<File> outputs = new ArrayList<>();
+        for (ApkBundle.Split split : bundle.getSplits()) {
+            outputs.add(new File(outDir, split.outputName()));
+        }
+        try {
+            injectHook(bundle, hookPayloads, clonerJson, bundledDataFile, (split, rewriter) -> {
+                Uri out = Uri.fromFile(new File(outDir, split.outputName()));
+                try (ApkOutput target = ApkOutput.open(ctx, out)) {
+                    rewriter.rewrite(split.archive, target);
                 }
+                ApkSigning.verifyInBackground(ctx, out);
+            });
+        } catch (Exception e) {
+            for (File f : outputs) f.delete();
+            throw e;
+        }
+        return outputs;
+    }
 
-                Matcher m = DEX_NAME.matcher(name);
-                if (m.matches()) {
-                    int idx = m.group(1).isEmpty() ? 1 : Integer.parseInt(m.group(1));
-                    dexNumbers.add(idx);
-                    Log.d(TAG, "Found DEX: " + name + " -> index " + idx);
-                }
+    /**
+     * As above, but each APK is signed straight into its stream of {@code session}; nothing
+     * is written to disk on the way. The caller commits the session once this returns.
+     */
+    public void injectHook(ApkBundle bundle, ApkInstaller.StreamSession session, File hookPayloads,
+                           File clonerJson, File bundledDataFile) throws Exception {
+        if (bundle == null || session == null || hookPayloads == null || clonerJson == null) {
+            throw new IllegalArgumentException("Required parameters cannot be null");
+        }
+        injectHook(bundle, hookPayloads, clonerJson, bundledDataFile, (split, rewriter) -> {
+            try (OutputStream out = session.openApk(split.outputName())) {
+                rewriter.rewrite(split.archive, out);
+                session.fsync(out);
+            }
+        });
+    }
 
-                if (ANDROID_MANIFEST.equals(name)) {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    copyStream(zis, baos);
-                    manifestRaw = baos.toByteArray();
-                    continue;
-                }
+    /** Where one rewritten APK of a bundle goes. */
+    private interface SplitSink {
+        void write(ApkBundle.Split split, ApkRewriter rewriter) throws Exception;
+    }
 
-                File out = safeResolve(tempRoot, basePath, name);
-                if (ze.isDirectory()) {
-                    if (!out.exists() && !out.mkdirs()) {
-                        throw new IOException("Failed to create dir: " + out);
+    private void injectHook(ApkBundle bundle, File hookPayloads, File clonerJson, File bundledDataFile,
+                            SplitSink sink) throws Exception {
+        JSONObject clonerConfig = readClonerConfig(clonerJson);
+        boolean bundleData = shouldBundleData(bundledDataFile);
+
+        try (ApkArchive payloads = new ApkArchive(hookPayloads);
+             ApkArchive slimmed = openSlimmed(hookPayloads, clonerConfig)) {
+            // Patch the base manifest up front: the splits need its final package name
+            ApkBundle.Split base = bundle.getBase();
+            byte[] baseManifest = base.archive.readBytes(base.archive.getEntry(ApkRewriter.ANDROID_MANIFEST));
+            ManifestPatchResult patched = patchManifest(baseManifest, clonerConfig, 1);
+            int minSdk = ApkSigning.minSdkVersion(patched.manifestBytes);
+            boolean libsInPlace = nativeLibsInPlace(clonerConfig);
+
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (ApkBundle.Split split : bundle.getSplits()) {
+                tasks.add(() -> {
+                    progress.throwIfCancelled();
+                    ApkRewriter rewriter;
+                    if (split.isBase()) {
+                        rewriter = hookRewriter(split.archive, payloads, slimmed, clonerJson, clonerConfig,
+                                bundleData ? bundledDataFile : null)
+                                .transformManifest(raw -> patched.manifestBytes);
+                    } else {
+                        rewriter = new ApkRewriter(ctx)
+                                .setProgress(progress)
+                                .setMinSdkVersion(minSdk)
+                                .transformManifest(raw -> patchSplitManifest(raw, patched.packageName));
+                        DeviceTargeting.Plan targeting = planTargeting(split.archive, clonerConfig);
+                        if (targeting != null) targeting.applyTo(rewriter);
                     }
-                    continue;
-                }
-                File parent = out.getParentFile();
-                if (parent != null && !parent.exists() && !parent.mkdirs()) {
-                    throw new IOException("Failed to create parent: " + parent);
-                }
-                try (FileOutputStream fos = new FileOutputStream(out)) {
-                    copyStream(zis, fos);
+                    // ABI splits carry libs too; they follow the base's extractNativeLibs
+                    rewriter.setNativeLibsInPlace(libsInPlace);
+                    sink.write(split, rewriter);
+                    return null;
+                });
+            }
+            runAll(tasks, true);
+        } catch (Exception e) {
+            Log.e(TAG, "Split APK injection failed", e);
+            throw e;
+        }
+        Log.i(TAG, "Injected and signed " + bundle.getSplits().size() + " APKs of " + bundle.getBase().outputName());
+    }
+
+    /**
+     * Rewriter that adds the cached hook payload, cloner.json and optional app data to {@code source}.
+     * The hook DEX comes from {@code slimmed} when the config leaves modules out.
+     */
+    private ApkRewriter hookRewriter(ApkArchive source, ApkArchive payloads, ApkArchive slimmed, File clonerJson,
+                                     JSONObject clonerConfig, File bundledData) throws IOException {
+        DeviceTargeting.Plan targeting = planTargeting(source, clonerConfig);
+        HookLayout layout = planHook(source, targeting != null ? targeting.abi : null);
+        ApkRewriter rewriter = new ApkRewriter(ctx).setProgress(progress);
+        if (targeting != null) targeting.applyTo(rewriter);
+        for (ApkArchive.Entry entry : payloads.getEntries()) {
+            String name = entry.getName();
+            if (HookPayloadCache.DEX_ENTRY.equals(name)) {
+                // Either way the DEX is already deflated and is spliced raw
+                ApkArchive dexFrom = slimmed != null ? slimmed : payloads;
+                ApkArchive.Entry dex = slimmed != null ? slimmed.getEntry(HookPayloadCache.DEX_ENTRY) : entry;
+                byte[] merged = clonerConfig != null && clonerConfig.optBoolean(MERGE_HOOK_DEX_KEY, false)
+                        ? mergeHookDex(source, layout, dexFrom.readBytes(dex)) : null;
+                if (merged != null) {
+                    rewriter.replace(layout.lastDexName, merged);
+                } else {
+                    rewriter.add(layout.dexName, dexFrom, dex);
                 }
+            } else if (name.startsWith(HookPayloadCache.LIB_PREFIX)) {
+                rewriter.add(layout.abiDir + name.substring(HookPayloadCache.LIB_PREFIX.length()), payloads, entry);
             }
         }
+        rewriter.add(CLONER_JSON_ENTRY, clonerJson);
+        rewriter.add(ClonerConfigBlob.ENTRY, ClonerConfigBlob.compile(clonerConfig));
+        if (bundledData != null) {
+            rewriter.add(BUNDLED_DATA_ENTRY, bundledData);
+            Log.d(TAG, "App data bundled into " + BUNDLED_DATA_ENTRY);
+        }
+        return rewriter;
+    }
 
-        if (manifestRaw == null) {
-            deleteRec(tempRoot);
-            throw new IOException("AndroidManifest.xml missing in APK");
+    /**
+     * The hook DEX slimmed to the modules the config enables, from its per-module-set cache zip,
+     * or {@code null} to ship the whole hook DEX.
+     */
+    private static ApkArchive openSlimmed(File hookPayloads, JSONObject clonerConfig) {
+        Set<String> modules = HookSlimmer.enabledModules(clonerConfig);
+        if (HookSlimmer.isComplete(modules)) return null;
+        try {
+            return new ApkArchive(HookPayloadCache.slimmed(hookPayloads, modules));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not slim the hook DEX, shipping all modules", e);
+            return null;
         }
+    }
 
-        JSONObject clonerConfig;
-        try (InputStreamReader reader = new InputStreamReader(new FileInputStream(clonerJson), "UTF-8")) {
-            StringBuilder sb = new StringBuilder();
-            char[] buffer = new char[4096];
-            int read;
-            while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
-                sb.append(buffer, 0, read);
-            }
-            clonerConfig = new JSONObject(sb.toString());
-        } catch (IOException | JSONException e) {
-            Log.e(TAG, "Failed to read or parse cloner.json, using default empty config.", e);
-            clonerConfig = new JSONObject();
+    /** The app's last DEX with the hook merged in, or {@code null} to add the hook as a DEX of its own. */
+    private static byte[] mergeHookDex(ApkArchive source, HookLayout layout, byte[] hookDex) {
+        if (layout.lastDexName == null) return null;
+        try {
+            return DexMerger.merge(source.readBytes(source.getEntry(layout.lastDexName)), hookDex);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not merge the hook into " + layout.lastDexName + ", adding it as its own DEX", e);
+            return null;
         }
+    }
 
-        ManifestPatchResult manifestResult = patchManifest(manifestRaw, clonerConfig);
-        byte[] patchedManifest = manifestResult.manifestBytes;
+    /** Moves a split to the base's (possibly renamed) package; nothing else in it changes. */
+    private static byte[] patchSplitManifest(byte[] raw, String pkg) throws IOException {
+        ResXmlDocument doc = new ResXmlDocument();
+        doc.readBytes(new ByteArrayInputStream(raw));
+        ResXmlElement root = doc.getDocumentElement();
+        if (root == null || !E_MANIFEST.equals(root.getName()))
+            throw new IOException("Invalid split manifest");
+        ResXmlAttribute pkgAttr = root.searchAttributeByName("package");
+        if (pkgAttr == null) throw new IOException("No package attribute in split");
+        if (pkg.equals(pkgAttr.getValueAsString())) return raw;
+        pkgAttr.setValueAsString(pkg);
+        doc.refresh();
+        return doc.getBytes();
+    }
 
-        int nextIdx = dexNumbers.isEmpty() ? 2 : Collections.max(dexNumbers) + 1;
-        String dexName = (nextIdx == 1) ? "classes.dex" : "classes" + nextIdx + ".dex";
-        Log.d(TAG, "Adding hook DEX as: " + dexName + " (nextIdx=" + nextIdx + ")");
-        copyFile(hookDex, new File(tempRoot, dexName));
-
-        File assetsDir = new File(tempRoot, "assets");
-        if (!assetsDir.exists() && !assetsDir.mkdirs()) {
-            deleteRec(tempRoot);
-            throw new IOException("Failed to create assets dir");
-        }
-        copyFile(clonerJson, new File(assetsDir, "cloner.json"));
-
-        if (bundledDataFile != null && bundledDataFile.exists()) {
-            try {
-                if (isProbablyZip(bundledDataFile) && bundledDataFile.length() <= 100L * 1024 * 1024) {
-                    copyFile(bundledDataFile, new File(assetsDir, "app_data_export.zip"));
-                    Log.d(TAG, "App data bundled into assets/app_data_export.zip");
-                } else {
-                    Log.w(TAG, "Bundled data file rejected (not a ZIP or too large). Skipping.");
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Error bundling app data. Skipping.", e);
+    private void copyCachedResult(File cached, Uri outApk) throws IOException {
+        progress.setStage(CloneProgress.STAGE_COMMITTING);
+        try (FileInputStream in = new FileInputStream(cached);
+             ApkOutput target = ApkOutput.open(ctx, outApk)) {
+            FileChannel src = in.getChannel();
+            long size = src.size();
+            target.write.truncate(0);
+            long pos = 0;
+            while (pos < size) {
+                long n = src.transferTo(pos, size - pos, target.write);
+                if (n <= 0) throw new IOException("Short copy from result cache");
+                pos += n;
             }
+            progress.addBytesRead(size);
+            progress.addBytesWritten(size);
+            target.commit();
         }
+    }
 
-        boolean hasArm64 = abiDirs.contains("lib/arm64-v8a/");
-        List<String> targetAbiDirs = new ArrayList<>();
-        if (hasArm64) {
-            targetAbiDirs.add("lib/arm64-v8a/");
-        } else {
-            targetAbiDirs.add("lib/armeabi-v7a/");
-        }
-        File[] soFiles = nativeLibDir.listFiles((d, n) -> n.endsWith(".so"));
-        if (soFiles != null) {
-            for (String abi : targetAbiDirs) {
-                File dstDir = new File(tempRoot, abi);
-                if (!dstDir.exists() && !dstDir.mkdirs()) {
-                    deleteRec(tempRoot);
-                    throw new IOException("Failed to create ABI dir: " + dstDir);
-                }
-                for (File so : soFiles) {
-                    copyFile(so, new File(dstDir, so.getName()));
-                }
+    /**
+     * Produces one clone per entry of {@code clonerJsons} from a single source APK, each built
+     * like {@link #injectHook(Uri, Uri, File, File, File)}. The source and the payload zip are
+     * opened once for all of them, and in generate_new_package mode variant {@code i} (0-based)
+     * gets the package name from {@code i + 1} applications of {@link #generateVariantPackageName}.
+     */
+    public void injectHookVariants(Uri inApk, List<Uri> outApks, File hookPayloads, List<File> clonerJsons,
+                                   File bundledDataFile, boolean parallel) throws Exception {
+        if (inApk == null || outApks == null || hookPayloads == null || clonerJsons == null) {
+            throw new IllegalArgumentException("Required parameters cannot be null");
+        }
+        if (outApks.size() != clonerJsons.size() || outApks.isEmpty()) {
+            throw new IllegalArgumentException("Need one output per config");
+        }
+        boolean bundleData = shouldBundleData(bundledDataFile);
+
+        try (ApkArchive source = ApkArchive.open(ctx, inApk, progress);
+             ApkArchive payloads = new ApkArchive(hookPayloads)) {
+            int n = outApks.size();
+            List<Callable<Void>> variants = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                final int variant = i;
+                variants.add(() -> {
+                    progress.throwIfCancelled();
+                    File clonerJson = clonerJsons.get(variant);
+                    JSONObject config = readClonerConfig(clonerJson);
+                    try (ApkArchive slimmed = openSlimmed(hookPayloads, config);
+                         ApkOutput target = ApkOutput.open(ctx, outApks.get(variant))) {
+                        hookRewriter(source, payloads, slimmed, clonerJson, config, bundleData ? bundledDataFile : null)
+                                .setNativeLibsInPlace(nativeLibsInPlace(config))
+                                .transformManifest(raw -> patchManifest(raw, config, variant + 1).manifestBytes)
+                                .rewrite(source, target);
+                    }
+                    ApkSigning.verifyInBackground(ctx, outApks.get(variant));
+                    Log.i(TAG, "Variant " + (variant + 1) + "/" + n + " written");
+                    return null;
+                });
             }
+            runAll(variants, parallel);
+        } catch (Exception e) {
+            Log.e(TAG, "Variant generation failed", e);
+            throw e;
         }
+        Log.i(TAG, "All " + outApks.size() + " variants completed successfully");
+    }
 
-        File unsignedApk = new File(ctx.getCacheDir(), "unsigned_" + System.nanoTime() + ".apk");
-        zipDir(tempRoot, unsignedApk, patchedManifest);
-        deleteRec(tempRoot);
+    /**
+     * How many clones {@code clonerJson} asks for from one source: its variant_count in
+     * generate_new_package mode, else 1. Variants of one package would just replace each other.
+     */
+    static int variantCount(File clonerJson) {
+        JSONObject config = readClonerConfig(clonerJson);
+        if (!CLONING_MODE_GENERATE.equalsIgnoreCase(config.optString(CLONING_MODE_KEY, CLONING_MODE_REPLACE))) {
+            return 1;
+        }
+        return Math.max(1, Math.min(config.optInt(VARIANT_COUNT_KEY, 1), MAX_VARIANTS));
+    }
 
-        File signedApk = new File(ctx.getCacheDir(), "signed_" + System.nanoTime() + ".apk");
+    /** Runs whole-APK rewrites, optionally side by side, and rethrows the first failure. */
+    private static void runAll(List<Callable<Void>> tasks, boolean parallel) throws Exception {
+        if (!parallel || tasks.size() == 1) {
+            for (Callable<Void> t : tasks) t.call();
+            return;
+        }
+        // Not the WorkerPool: rewrites block on deflate and digest tasks that run there
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(tasks.size(), WorkerPool.THREADS));
         try {
-            signApk(unsignedApk, signedApk);
+            Exception failure = null;
+            for (Future<Void> f : executor.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (failure == null) {
+                        failure = cause instanceof Exception ? (Exception) cause : new Exception(cause);
+                    }
+                }
+            }
+            if (failure != null) throw failure;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Where the hook goes in a given source APK, read from its central directory alone.
+     * {@code keptAbi}, if set, is the only ABI left in the clone; the hook libs go there when they can.
+     */
+    private static HookLayout planHook(ApkArchive source, String keptAbi) throws IOException {
+        if (source.getEntry(ApkRewriter.ANDROID_MANIFEST) == null) {
+            throw new IOException("AndroidManifest.xml missing in APK");
+        }
+        Set<Integer> dexNumbers = new HashSet<>();
+        Set<String> abiDirs = new HashSet<>();
+        for (ApkArchive.Entry entry : source.getEntries()) {
+            String name = entry.getName();
+            if (name.startsWith("lib/") && name.endsWith(".so")) {
+                int slash = name.indexOf('/', 4);
+                if (slash > 0) abiDirs.add(name.substring(0, slash + 1));
+            }
+            Matcher m = DEX_NAME.matcher(name);
+            if (m.matches()) {
+                int idx = m.group(1).isEmpty() ? 1 : Integer.parseInt(m.group(1));
+                dexNumbers.add(idx);
+                Log.d(TAG, "Found DEX: " + name + " -> index " + idx);
+            }
+        }
+        int nextIdx = dexNumbers.isEmpty() ? 2 : Collections.max(dexNumbers) + 1;
+        HookLayout layout = new HookLayout();
+        layout.dexName = (nextIdx == 1) ? "classes.dex" : "classes" + nextIdx + ".dex";
+        if (!dexNumbers.isEmpty()) {
+            int lastIdx = nextIdx - 1;
+            layout.lastDexName = (lastIdx == 1) ? "classes.dex" : "classes" + lastIdx + ".dex";
+        }
+        if ("arm64-v8a".equals(keptAbi) || "armeabi-v7a".equals(keptAbi)) {
+            layout.abiDir = "lib/" + keptAbi + "/";
+        } else {
+            layout.abiDir = abiDirs.contains("lib/arm64-v8a/") ? "lib/arm64-v8a/" : "lib/armeabi-v7a/";
+        }
+        Log.d(TAG, "Adding hook DEX as: " + layout.dexName + " (nextIdx=" + nextIdx + ")");
+        return layout;
+    }
+
+    /**
+     * Re-signs an existing clone with a new cloner.json. Every other entry is spliced raw,
+     * so a config edit costs one sequential copy of the APK instead of a full rebuild.
+     */
+    public void updateClonerConfig(File clonedApk, File clonerJson, File outApk) throws Exception {
+        if (clonedApk == null || clonerJson == null || outApk == null) {
+            throw new IllegalArgumentException("Required parameters cannot be null");
+        }
+        Uri out = Uri.fromFile(outApk);
+        try (ApkArchive source = new ApkArchive(clonedApk);
+             ApkOutput target = ApkOutput.open(ctx, out)) {
+            checkModulesPresent(source, clonerJson);
+            new ApkRewriter(ctx)
+                    .setProgress(progress)
+                    .replace(CLONER_JSON_ENTRY, clonerJson)
+                    .replace(ClonerConfigBlob.ENTRY, ClonerConfigBlob.compile(readClonerConfig(clonerJson)))
+                    .rewrite(source, target);
         } catch (Exception e) {
-            Log.e(TAG, "Signing failed", e);
-            unsignedApk.delete();
-            signedApk.delete();
+            Log.e(TAG, "Config update failed", e);
+            outApk.delete();
             throw e;
         }
-        unsignedApk.delete();
+        ApkSigning.verifyInBackground(ctx, out);
+        Log.i(TAG, "Config update + signing completed successfully");
+    }
 
-        try (OutputStream os = ctx.getContentResolver().openOutputStream(outApk)) {
-            if (os == null) {
-                throw new IOException("Cannot open output stream for: " + outApk);
-            }
-            copyFileToStream(signedApk, os);
+    /** As above, streaming the re-signed clone into {@code session} under {@code apkName}. */
+    public void updateClonerConfig(File clonedApk, File clonerJson, ApkInstaller.StreamSession session,
+                                   String apkName) throws Exception {
+        if (clonedApk == null || clonerJson == null || session == null || apkName == null) {
+            throw new IllegalArgumentException("Required parameters cannot be null");
+        }
+        try (ApkArchive source = new ApkArchive(clonedApk);
+             OutputStream out = session.openApk(apkName)) {
+            checkModulesPresent(source, clonerJson);
+            new ApkRewriter(ctx)
+                    .setProgress(progress)
+                    .replace(CLONER_JSON_ENTRY, clonerJson)
+                    .replace(ClonerConfigBlob.ENTRY, ClonerConfigBlob.compile(readClonerConfig(clonerJson)))
+                    .rewrite(source, out);
+            session.fsync(out);
         } catch (Exception e) {
-            Log.e(TAG, "Error writing output APK", e);
-            signedApk.delete();
+            Log.e(TAG, "Config update failed", e);
             throw e;
         }
-        signedApk.delete();
-        Log.i(TAG, "APK injection + signing completed successfully");
+        Log.i(TAG, "Config update streamed into install session " + session.id);
+    }
+
+    /**
+     * What device-targeted output drops from {@code source}, or {@code null} when the config
+     * asks for a full clone.
+     */
+    private DeviceTargeting.Plan planTargeting(ApkArchive source, JSONObject clonerConfig) throws IOException {
+        DeviceTargeting targeting = targeting(clonerConfig);
+        return targeting != null ? targeting.plan(source) : null;
+    }
+
+    /** This device's targeting, or {@code null} when off. Resource pruning is opt-in on top of ABI pruning. */
+    private DeviceTargeting targeting(JSONObject clonerConfig) {
+        if (clonerConfig == null || !clonerConfig.optBoolean(DEVICE_TARGETED_KEY, false)) return null;
+        int densityDpi = clonerConfig.optBoolean(PRUNE_DENSITIES_KEY, false)
+                ? ctx.getResources().getDisplayMetrics().densityDpi : 0;
+        Set<String> languages = new HashSet<>();
+        String keep = clonerConfig.optString(KEEP_LOCALES_KEY, "").trim();
+        if (!keep.isEmpty()) {
+            for (String lang : keep.split(",")) {
+                lang = lang.trim().toLowerCase(Locale.US);
+                if (!lang.isEmpty()) languages.add(lang);
+            }
+            // The clone would fall back to default strings in the device's own language otherwise
+            languages.add(Locale.getDefault().getLanguage());
+        }
+        return new DeviceTargeting(Build.SUPPORTED_ABIS, densityDpi, languages);
+    }
+
+    /** Whether the clone keeps its native libs STORED in the APK (extractNativeLibs="false"). */
+    private static boolean nativeLibsInPlace(JSONObject clonerConfig) {
+        return clonerConfig != null && clonerConfig.optBoolean(NATIVE_LIBS_IN_PLACE_KEY, false);
+    }
+
+    /**
+     * Config updates only swap cloner.json, so they cannot bring back hook classes that were
+     * slimmed away; turning on a module the clone was built without needs a fresh clone.
+     */
+    private void checkModulesPresent(ApkArchive clone, File clonerJson) throws IOException {
+        ApkArchive.Entry entry = clone.getEntry(CLONER_JSON_ENTRY);
+        if (entry == null) return;
+        JSONObject built;
+        try {
+            built = new JSONObject(new String(clone.readBytes(entry), "UTF-8"));
+        } catch (JSONException e) {
+            return;
+        }
+        Set<String> added = HookSlimmer.enabledModules(readClonerConfig(clonerJson));
+        added.removeAll(HookSlimmer.enabledModules(built));
+        if (!added.isEmpty()) {
+            throw new IOException("This clone was built without " + added + "; clone the app again to enable it");
+        }
+    }
+
+    private static JSONObject readClonerConfig(File clonerJson) {
+        try (InputStreamReader reader = new InputStreamReader(new FileInputStream(clonerJson), "UTF-8")) {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+                sb.append(buffer, 0, read);
+            }
+            return new JSONObject(sb.toString());
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Failed to read or parse cloner.json, using default empty config.", e);
+            return new JSONObject();
+        }
+    }
+
+    private static boolean shouldBundleData(File bundledDataFile) {
+        if (bundledDataFile == null || !bundledDataFile.exists()) {
+            return false;
+        }
+        if (isProbablyZip(bundledDataFile) && bundledDataFile.length() <= MAX_BUNDLED_DATA_SIZE) {
+            return true;
+        }
+        Log.w(TAG, "Bundled data file rejected (not a ZIP or too large). Skipping.");
+        return false;
     }
 
-    private ManifestPatchResult patchManifest(byte[] raw, JSONObject clonerConfig) throws IOException {
+    private ManifestPatchResult patchManifest(byte[] raw, JSONObject clonerConfig, int variantIndex) throws IOException {
         ResXmlDocument doc = new ResXmlDocument();
         doc.readBytes(new ByteArrayInputStream(raw));
         ResXmlElement root = doc.getDocumentElement();
@@ -256,7 +602,7 @@ public class ApkProcessor {
         ResXmlElement app = root.getElement(E_APPLICATION);
         if (app == null) throw new IOException("<application> missing");
 
-        // Force extractNativeLibs="true" because we compress .so files
+        // Compressed .so files have to be extracted; STORED ones are mapped from the APK
         ResXmlAttribute extractNativeLibsAttr = app.searchAttributeByResourceId(ID_ANDROID_EXTRACT_NATIVE_LIBS);
         if (extractNativeLibsAttr == null) {
             extractNativeLibsAttr = app.searchAttributeByName("android:extractNativeLibs");
@@ -264,14 +610,17 @@ public class ApkProcessor {
         if (extractNativeLibsAttr == null) {
             extractNativeLibsAttr = app.createAndroidAttribute("extractNativeLibs", ID_ANDROID_EXTRACT_NATIVE_LIBS);
         }
-        extractNativeLibsAttr.setValueAsBoolean(true);
+        extractNativeLibsAttr.setValueAsBoolean(!nativeLibsInPlace(clonerConfig));
 
         String cloningMode = CLONING_MODE_REPLACE;
         if (clonerConfig != null) {
             cloningMode = clonerConfig.optString(CLONING_MODE_KEY, CLONING_MODE_REPLACE);
         }
         if (CLONING_MODE_GENERATE.equalsIgnoreCase(cloningMode)) {
-            String generatedPkg = generateVariantPackageName(pkg);
+            String generatedPkg = pkg;
+            for (int i = 0; i < variantIndex; i++) {
+                generatedPkg = generateVariantPackageName(generatedPkg);
+            }
             if (generatedPkg != null && !generatedPkg.isEmpty() && !generatedPkg.equals(pkg)) {
                 Log.d(TAG, "Cloning mode enabled: package will change from " + pkg + " to " + generatedPkg);
                 pkgAttr.setValueAsString(generatedPkg);
@@ -369,6 +718,9 @@ public class ApkProcessor {
                 .setValueAsString(EXPORT_ACTION);
         }
 
+        // Camera components only make sense when the camera module is in the hook DEX
+        boolean cameraModule = HookSlimmer.enabledModules(clonerConfig).contains(HookSlimmer.MODULE_CAMERA);
+
         boolean cameraControlReceiverExists = false;
         for (ResXmlElement r : app.listElements(E_RECEIVER)) {
             ResXmlAttribute nameAttr = r.searchAttributeByResourceId(ID_ANDROID_NAME);
@@ -377,7 +729,7 @@ public class ApkProcessor {
                 break;
             }
         }
-        if (!cameraControlReceiverExists) {
+        if (cameraModule && !cameraControlReceiverExists) {
             Log.d(TAG, "Injecting CameraControlReceiver");
             ResXmlElement receiver = app.newElement(E_RECEIVER);
             receiver.getOrCreateAndroidAttribute(A_NAME, ID_ANDROID_NAME)
@@ -412,7 +764,7 @@ public class ApkProcessor {
                 break;
             }
         }
-        if (!fakeCameraActivityExists) {
+        if (cameraModule && !fakeCameraActivityExists) {
             Log.d(TAG, "Injecting FakeCameraActivity");
             ResXmlElement activity = app.newElement(E_ACTIVITY);
             activity.getOrCreateAndroidAttribute(A_NAME, ID_ANDROID_NAME)
@@ -428,6 +780,7 @@ public class ApkProcessor {
 
         ManifestPatchResult result = new ManifestPatchResult();
         result.manifestBytes = doc.getBytes();
+        result.packageName = pkg;
         return result;
     }
 
@@ -617,129 +970,6 @@ public class ApkProcessor {
             .setValueAsString(permission);
     }
 
-    private void zipDir(File root, File outFile, byte[] manifestBytes) throws IOException {
-        try (OutputStream os = new FileOutputStream(outFile);
-             ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(os))) {
-            zos.setLevel(9);
-            writeZip(root, zos, manifestBytes);
-        }
-    }
-
-    private void writeZip(File root, ZipOutputStream zos, byte[] manifestBytes) throws IOException {
-        ZipEntry manifestEntry = createZipEntry(ANDROID_MANIFEST, manifestBytes);
-        zos.putNextEntry(manifestEntry);
-        zos.write(manifestBytes);
-        zos.closeEntry();
-        addRec(root, root.getAbsolutePath(), zos);
-    }
-
-    private void addRec(File node, String base, ZipOutputStream zos) throws IOException {
-        if (node.isDirectory()) {
-            File[] kids = node.listFiles();
-            if (kids != null) for (File k : kids) addRec(k, base, zos);
-            return;
-        }
-        String rel = node.getAbsolutePath().substring(base.length() + 1).replace(File.separatorChar, '/');
-        if (ANDROID_MANIFEST.equals(rel)) return;
-        ZipEntry entry = createZipEntry(rel, node);
-        zos.putNextEntry(entry);
-        try (FileInputStream fis = new FileInputStream(node)) {
-            copyStream(fis, zos);
-        }
-        zos.closeEntry();
-    }
-
-    private ZipEntry createZipEntry(String name, byte[] data) {
-        ZipEntry e = new ZipEntry(name);
-        e.setTime(0L);
-        e.setMethod(ZipEntry.DEFLATED);
-        return e;
-    }
-
-    private ZipEntry createZipEntry(String name, File file) throws IOException {
-        ZipEntry e = new ZipEntry(name);
-        e.setTime(0L);
-        String lower = name.toLowerCase(Locale.US);
-        // Only STORE (uncompressed) resources.arsc.
-        // Native libs (.so) and DEX files (.dex) should be DEFLATED (compressed).
-        // This ensures that native libs are automatically extracted by the system during install,
-        -        // avoiding the requirement for 4KB page alignment of uncompressed libs in the APK.
-        boolean store = lower.endsWith(".arsc");
-        if (store) {
-            e.setMethod(ZipEntry.STORED);
-            long size = file.length();
-            e.setSize(size);
-            e.setCompressedSize(size);
-            CRC32 crc = new CRC32();
-            try (InputStream in = new FileInputStream(file)) {
-                byte[] buf = new byte[8192];
-                int r;
-                while ((r = in.read(buf)) != -1) {
-                    crc.update(buf, 0, r);
-                }
-            }
-            e.setCrc(crc.getValue());
-        } else {
-            e.setMethod(ZipEntry.DEFLATED);
-        }
-        return e;
-    }
-
-    private void signApk(File in, File out) throws Exception {
-        Log.d(TAG, "Loading signer config...");
-        ApkSigner.SignerConfig signer = loadSignerConfig();
-        Log.d(TAG, "Signer config loaded. Building ApkSigner...");
-        ApkSigner apkSigner = new ApkSigner.Builder(Collections.singletonList(signer))
-                .setInputApk(in)
-                .setOutputApk(out)
-                .setV1SigningEnabled(true)
-                .setV2SigningEnabled(true)
-                .setV3SigningEnabled(false)  // Disabled for better compatibility
-                .build();
-        Log.d(TAG, "Calling apkSigner.sign()...");
-        apkSigner.sign();
-        Log.d(TAG, "APK signed successfully.");
-
-        try {
-            Log.d(TAG, "Attempting APK verification...");
-            Class<?> builderClass = Class.forName("com.android.apksig.ApkVerifier$Builder");
-            Object builderInstance = builderClass.getConstructor(File.class).newInstance(out);
-            Object apkVerifierInstance = builderClass.getMethod("build").invoke(builderInstance);
-            Object vRes = apkVerifierInstance.getClass().getMethod("verify").invoke(apkVerifierInstance);
-            Boolean isVerified = (Boolean) vRes.getClass().getMethod("isVerified").invoke(vRes);
-            if (isVerified != null && !isVerified) {
-                Log.w(TAG, "APK verification result: NOT VERIFIED (continuing)");
-            } else {
-                Log.d(TAG, "APK signature verification passed (or skipped).");
-            }
-        } catch (Throwable t) {
-            Log.w(TAG, "Verification skipped due to error", t);
-        }
-        Log.d(TAG, "Signing process completed.");
-    }
-
-    private ApkSigner.SignerConfig loadSignerConfig() throws Exception {
-        Log.d(TAG, "Loading keystore: " + KEYSTORE_ASSET + " with alias: " + ALIAS);
-        try (InputStream ksStream = ctx.getAssets().open(KEYSTORE_ASSET)) {
-            KeyStore ks = KeyStore.getInstance("PKCS12");
-            ks.load(ksStream, STORE_PWD.toCharArray());
-            PrivateKey key = (PrivateKey) ks.getKey(ALIAS, KEY_PWD.toCharArray());
-            if (key == null) throw new IllegalStateException("Private key is null for alias: " + ALIAS);
-            X509Certificate cert = (X509Certificate) ks.getCertificate(ALIAS);
-            if (cert == null) throw new IllegalStateException("Certificate is null for alias: " + ALIAS);
-            return new ApkSigner.SignerConfig.Builder(ALIAS, key, Collections.singletonList(cert)).build();
-        }
-    }
-
-    private static File safeResolve(File root, String basePath, String entryName) throws IOException {
-        File out = new File(root, entryName);
-        String outPath = out.getCanonicalPath();
-        if (!outPath.startsWith(basePath)) {
-            throw new IOException("Blocked zip path traversal: " + entryName);
-        }
-        return out;
-    }
-
     private static boolean isProbablyZip(File f) {
         if (!f.isFile() || f.length() < 4) return false;
         try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
@@ -753,49 +983,6 @@ public class ApkProcessor {
         }
     }
 
-    private static void copyFile(File source, File dest) throws IOException {
-        if (source == null || dest == null) {
-            throw new IllegalArgumentException("Source and destination files cannot be null");
-        }
-        if (!source.exists() || !source.isFile()) {
-            throw new IOException("Source file does not exist: " + source);
-        }
-        File parent = dest.getParentFile();
-        if (parent != null && !parent.exists() && !parent.mkdirs()) {
-            throw new IOException("Failed to create directory: " + parent);
-        }
-        try (InputStream in = new FileInputStream(source);
-             OutputStream out = new FileOutputStream(dest)) {
-            copyStream(in, out);
-        }
-    }
-
-    private static void copyFileToStream(File source, OutputStream dest) throws IOException {
-        if (source == null || dest == null) {
-            throw new IllegalArgumentException("Source file and destination stream cannot be null");
-        }
-        if (!source.exists() || !source.isFile()) {
-            throw new IOException("Source file does not exist: " + source);
-        }
-        try (InputStream in = new FileInputStream(source)) {
-            copyStream(in, dest);
-        }
-    }
-
-    private static void copyStream(InputStream in, OutputStream out) throws IOException {
-        byte[] buf = new byte[8192];
-        int n;
-        while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
-    }
-
-    private static void deleteRec(File f) {
-        if (f.isDirectory()) {
-            File[] kids = f.listFiles();
-            if (kids != null) for (File k : kids) deleteRec(k);
-        }
-        f.delete();
-    }
-
     private void removeAttribute(ResXmlElement element, String name) {
         if (element == null || name == null) return;
         ResXmlAttribute attr = element.searchAttributeByName(name);
@@ -804,7 +991,15 @@ public class ApkProcessor {
         }
     }
 
+    private static class HookLayout {
+        String dexName;
+        /** Highest-numbered DEX of the app, {@code null} if it has none. */
+        String lastDexName;
+        String abiDir;
+    }
+
     private static class ManifestPatchResult {
         byte[] manifestBytes;
+        String packageName;
     }
 }
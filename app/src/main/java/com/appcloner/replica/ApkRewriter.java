@@ -0,0 +1,321 @@
+package com.appcloner.replica;
+
+import android.content.Context;
+import android.util.Log;
+import com.android.apksig.ApkSignerEngine;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * Rewrites a source APK into a signed output by applying a list of entry operations.
+ * Untouched entries are spliced raw, new payloads are deflated on the worker pool while
+ * the copy runs, and the output is signed as it is written. Both fresh clones and config
+ * updates go through here.
+ */
+final class ApkRewriter {
+    private static final String TAG = "ApkRewriter";
+    static final String ANDROID_MANIFEST = "AndroidManifest.xml";
+    private static final Pattern SIG_PATH = Pattern.compile(
+            "^META-INF/(.+\\.(RSA|DSA|EC|SF)|MANIFEST\\.MF)$", Pattern.CASE_INSENSITIVE);
+
+    /** Rewrites the binary AndroidManifest.xml. */
+    interface ManifestTransform {
+        byte[] apply(byte[] manifest) throws IOException;
+    }
+
+    private final Context ctx;
+    private final Map<String, Payload> payloads = new LinkedHashMap<>();
+    private final Set<String> dropped = new HashSet<>();
+    private ManifestTransform manifestTransform;
+    private int minSdkVersion = -1;
+    private boolean nativeLibsInPlace;
+    private CloneProgress progress = new CloneProgress();
+
+    ApkRewriter(Context ctx) {
+        this.ctx = ctx;
+    }
+
+    ApkRewriter setProgress(CloneProgress progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /** Writes {@code data} where the source entry {@code name} is, or appends it if there is none. */
+    ApkRewriter replace(String name, File data) {
+        payloads.put(name, new Payload(data, null, true));
+        return this;
+    }
+
+    ApkRewriter replace(String name, byte[] data) {
+        payloads.put(name, new Payload(null, data, true));
+        return this;
+    }
+
+    /** Appends {@code data} after the source entries; a source entry of the same name is dropped. */
+    ApkRewriter add(String name, File data) {
+        payloads.put(name, new Payload(data, null, false));
+        return this;
+    }
+
+    ApkRewriter add(String name, byte[] data) {
+        payloads.put(name, new Payload(null, data, false));
+        return this;
+    }
+
+    /** Appends an entry of another archive, spliced raw so it is never recompressed. */
+    ApkRewriter add(String name, ApkArchive from, ApkArchive.Entry entry) {
+        payloads.put(name, new Payload(from, entry));
+        return this;
+    }
+
+    ApkRewriter drop(String name) {
+        dropped.add(name);
+        return this;
+    }
+
+    /**
+     * Stores native libraries uncompressed, so they load from the APK instead of being
+     * extracted at install time. The manifest must say extractNativeLibs="false" to match.
+     */
+    ApkRewriter setNativeLibsInPlace(boolean nativeLibsInPlace) {
+        this.nativeLibsInPlace = nativeLibsInPlace;
+        return this;
+    }
+
+    /** The transformed manifest is written as the first entry. */
+    ApkRewriter transformManifest(ManifestTransform transform) {
+        manifestTransform = transform;
+        return this;
+    }
+
+    /**
+     * Signs for this minSdkVersion instead of the one in the manifest. Config splits usually
+     * declare none, and must be signed like their base.
+     */
+    ApkRewriter setMinSdkVersion(int minSdkVersion) {
+        this.minSdkVersion = minSdkVersion;
+        return this;
+    }
+
+    /** Writes the signed result to {@code out} and commits it. */
+    void rewrite(ApkArchive source, ApkOutput out) throws Exception {
+        CloneProgress.Tracker track = progress.track();
+        try {
+            write(source, track, signer -> new ApkZipWriter(out.write, signer, out.read));
+            progress.throwIfCancelled();
+            track.setStage(CloneProgress.STAGE_COMMITTING);
+            long spooled = out.spooledBytes();
+            progress.tempAllocated(spooled);
+            try {
+                out.commit();
+            } finally {
+                progress.tempReleased(spooled);
+            }
+        } finally {
+            track.finish();
+        }
+    }
+
+    /**
+     * Writes the signed result to {@code out} front to back, for sinks that cannot seek such
+     * as an install session. {@code out} is flushed but left open.
+     */
+    void rewrite(ApkArchive source, OutputStream out) throws Exception {
+        CloneProgress.Tracker track = progress.track();
+        try {
+            write(source, track, signer -> new ApkZipWriter(out, signer, ctx.getCacheDir()));
+        } finally {
+            track.finish();
+        }
+        out.flush();
+        progress.throwIfCancelled();
+    }
+
+    private interface WriterFactory {
+        ApkZipWriter open(ApkSignerEngine signer) throws IOException;
+    }
+
+    private void write(ApkArchive source, CloneProgress.Tracker track, WriterFactory writers) throws Exception {
+        ApkArchive.Entry manifestEntry = source.getEntry(ANDROID_MANIFEST);
+        if (manifestEntry == null) {
+            throw new IOException("AndroidManifest.xml missing in APK");
+        }
+        try {
+            // Start deflating new payloads now so the workers overlap with the raw copy below.
+            for (Map.Entry<String, Payload> e : payloads.entrySet()) {
+                Payload p = e.getValue();
+                if (p.from != null || shouldStore(e.getKey())) continue;
+                p.job = p.file != null
+                        ? ParallelDeflater.submit(p.file, Deflater.BEST_COMPRESSION)
+                        : ParallelDeflater.submit(p.bytes, Deflater.BEST_COMPRESSION);
+            }
+
+            track.setStage(CloneProgress.STAGE_READING);
+            byte[] manifest = source.readBytes(manifestEntry);
+            if (manifestTransform != null) {
+                track.setStage(CloneProgress.STAGE_PATCHING);
+                manifest = manifestTransform.apply(manifest);
+            }
+            progress.throwIfCancelled();
+
+            try (ApkSignerEngine signer = minSdkVersion > 0
+                    ? ApkSigning.newEngine(ctx, minSdkVersion)
+                    : ApkSigning.newEngine(ctx, manifest);
+                 ApkZipWriter writer = writers.open(signer)) {
+                long reported = 0;
+                track.setStage(CloneProgress.STAGE_WRITING);
+                if (manifestTransform != null) {
+                    putEntry(writer, ANDROID_MANIFEST, manifest);
+                    track.addEntries(1);
+                }
+                for (ApkArchive.Entry entry : source.getEntries()) {
+                    progress.throwIfCancelled();
+                    String name = entry.getName();
+                    if (name == null || name.isEmpty()) continue;
+                    if (entry.isDirectory()) continue;
+                    if (SIG_PATH.matcher(name).matches()) continue;
+                    if (dropped.contains(name)) continue;
+                    if (manifestTransform != null && ANDROID_MANIFEST.equals(name)) continue;
+                    checkEntryName(name);
+                    if (writer.contains(name)) {
+                        Log.w(TAG, "Skipping duplicate entry: " + name);
+                        continue;
+                    }
+                    Payload p = payloads.get(name);
+                    if (p == null) {
+                        copyEntry(source, entry, name, writer);
+                        track.addBytesRead(entry.compressedSize);
+                    } else if (p.inPlace) {
+                        writePayload(writer, name, p, track);
+                    }
+                    track.addEntries(1);
+                    reported = reportWritten(writer, track, reported);
+                }
+                for (Map.Entry<String, Payload> e : payloads.entrySet()) {
+                    progress.throwIfCancelled();
+                    if (!writer.contains(e.getKey())) {
+                        writePayload(writer, e.getKey(), e.getValue(), track);
+                        track.addEntries(1);
+                        reported = reportWritten(writer, track, reported);
+                    }
+                }
+                track.setStage(CloneProgress.STAGE_SIGNING);
+                writer.finish();
+                reported = reportWritten(writer, track, reported);
+            }
+        } finally {
+            for (Payload p : payloads.values()) {
+                if (p.job != null) p.job.cancel();
+            }
+        }
+    }
+
+    /** Progress may be shared by several rewrites, so only the growth since the last report is added. */
+    private static long reportWritten(ApkZipWriter writer, CloneProgress.Tracker track, long reported) {
+        long size = writer.size();
+        track.addBytesWritten(size - reported);
+        return size;
+    }
+
+    private void writePayload(ApkZipWriter writer, String name, Payload p, CloneProgress.Tracker track)
+            throws IOException {
+        ParallelDeflater.Job job = p.job;
+        p.job = null;
+        if (p.from != null) {
+            track.addBytesRead(p.entry.compressedSize);
+            copyEntry(p.from, p.entry, name, writer);
+            return;
+        }
+        track.addBytesRead(p.file != null ? p.file.length() : p.bytes.length);
+        if (job != null) {
+            writer.writeDeflated(name, job);
+        } else if (p.file != null) {
+            putEntry(writer, name, readAllBytes(p.file));
+        } else {
+            putEntry(writer, name, p.bytes);
+        }
+    }
+
+    /**
+     * Copies an untouched source entry. Its compressed bytes are spliced as-is, keeping the
+     * original method, unless it has to be STORED and is not (e.g. a DEFLATED resources.arsc).
+     */
+    private void copyEntry(ApkArchive source, ApkArchive.Entry entry, String name, ApkZipWriter writer)
+            throws IOException {
+        if (!shouldStore(name) || entry.method == ApkArchive.METHOD_STORED) {
+            writer.copyRaw(source, entry, name);
+        } else {
+            writer.writeInflated(name, source, entry);
+        }
+    }
+
+    private void putEntry(ApkZipWriter writer, String name, byte[] data) throws IOException {
+        if (shouldStore(name)) {
+            writer.writeStored(name, data);
+        } else {
+            writer.writeDeflated(name, data);
+        }
+    }
+
+    // resources.arsc and the compiled cloner config are always STORED (and 4-byte aligned)
+    // so they can be mapped. Native libs are DEFLATED and extracted at install time, unless they are kept in place;
+    // then they are STORED and the writer page-aligns them. DEX files stay DEFLATED.
+    private boolean shouldStore(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        if (lower.endsWith(".arsc") || ClonerConfigBlob.ENTRY.equals(name)) return true;
+        return nativeLibsInPlace && lower.startsWith("lib/") && lower.endsWith(".so");
+    }
+
+    private static void checkEntryName(String entryName) throws IOException {
+        if (entryName.startsWith("/") || entryName.startsWith("\\")
+                || entryName.contains("../") || entryName.contains("..\\")) {
+            throw new IOException("Blocked zip path traversal: " + entryName);
+        }
+    }
+
+    private static byte[] readAllBytes(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] out = new byte[(int) file.length()];
+            int off = 0;
+            int n;
+            while (off < out.length && (n = in.read(out, off, out.length - off)) != -1) off += n;
+            if (off != out.length) throw new IOException("Short read: " + file);
+            return out;
+        }
+    }
+
+    private static final class Payload {
+        final File file;
+        final byte[] bytes;
+        final ApkArchive from;
+        final ApkArchive.Entry entry;
+        final boolean inPlace;
+        ParallelDeflater.Job job;
+
+        Payload(File file, byte[] bytes, boolean inPlace) {
+            this.file = file;
+            this.bytes = bytes;
+            this.from = null;
+            this.entry = null;
+            this.inPlace = inPlace;
+        }
+
+        Payload(ApkArchive from, ApkArchive.Entry entry) {
+            this.file = null;
+            this.bytes = null;
+            this.from = from;
+            this.entry = entry;
+            this.inPlace = false;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.appcloner.replica;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.DefaultApkSignerEngine;
+import com.android.apksig.apk.ApkUtils;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import com.android.apksig.util.RunnablesExecutor;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Signing setup shared by the clone and update paths. The debug keystore is loaded once
+ * per process, and V2 chunk digests are spread over the {@link WorkerPool}.
+ */
+final class ApkSigning {
+    private static final String TAG = "ApkSigning";
+    private static final String KEYSTORE_ASSET = "debug.p12";
+    private static final String STORE_PWD      = "android";
+    private static final String KEY_PWD        = "android";
+    private static final String ALIAS          = "key0";
+
+    private static final Object LOCK = new Object();
+    private static volatile DefaultApkSignerEngine.SignerConfig signerConfig;
+
+    // Each runnable pulls chunks from a shared supplier inside apksig, so one per core is enough
+    private static final RunnablesExecutor EXECUTOR = provider -> {
+        List<Future<?>> running = new ArrayList<>(WorkerPool.THREADS);
+        for (int i = 0; i < WorkerPool.THREADS; i++) {
+            running.add(WorkerPool.get().submit(provider.createRunnable()));
+        }
+        try {
+            for (Future<?> f : running) f.get();
+        } catch (InterruptedException e) {
+            for (Future<?> f : running) f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while computing digests", e);
+        } catch (ExecutionException e) {
+            for (Future<?> f : running) f.cancel(true);
+            throw new RuntimeException("Digest computation failed", e.getCause());
+        }
+    };
+
+    private ApkSigning() {}
+
+    /** New signer engine for one output APK; {@code manifest} is the final binary manifest. */
+    static ApkSignerEngine newEngine(Context ctx, byte[] manifest) throws Exception {
+        return newEngine(ctx, minSdkVersion(manifest));
+    }
+
+    static ApkSignerEngine newEngine(Context ctx, int minSdkVersion) throws Exception {
+        DefaultApkSignerEngine engine = new DefaultApkSignerEngine.Builder(
+                Collections.singletonList(signerConfig(ctx)), minSdkVersion)
+                .setV1SigningEnabled(true)
+                .setV2SigningEnabled(true)
+                .setV3SigningEnabled(false)  // Disabled for better compatibility
+                .build();
+        engine.setExecutor(EXECUTOR);
+        return engine;
+    }
+
+    static DefaultApkSignerEngine.SignerConfig signerConfig(Context ctx) throws Exception {
+        DefaultApkSignerEngine.SignerConfig config = signerConfig;
+        if (config != null) return config;
+        synchronized (LOCK) {
+            if (signerConfig == null) {
+                signerConfig = loadSignerConfig(ctx);
+            }
+            return signerConfig;
+        }
+    }
+
+    /** SHA-256 of the signing certificate, identifying the key the clones are signed with. */
+    static String signerId(Context ctx) throws Exception {
+        X509Certificate cert = signerConfig(ctx).getCertificates().get(0);
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(cert.getEncoded());
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Verifies a finished APK on the worker pool and logs the outcome. Verification rereads
+     * the whole file, so it only runs when enabled with {@code setprop log.tag.ApkSigning DEBUG}.
+     */
+    static void verifyInBackground(Context ctx, Uri apk) {
+        if (!Log.isLoggable(TAG, Log.DEBUG)) return;
+        Context app = ctx.getApplicationContext();
+        WorkerPool.get().execute(() -> {
+            try (ApkArchive archive = ApkArchive.open(app, apk)) {
+                Class<?> builderClass = Class.forName("com.android.apksig.ApkVerifier$Builder");
+                DataSource data = DataSources.asDataSource(archive.getChannel(), 0, archive.getChannel().size());
+                Object builderInstance = builderClass.getConstructor(DataSource.class).newInstance(data);
+                Object apkVerifierInstance = builderClass.getMethod("build").invoke(builderInstance);
+                Object vRes = apkVerifierInstance.getClass().getMethod("verify").invoke(apkVerifierInstance);
+                Boolean isVerified = (Boolean) vRes.getClass().getMethod("isVerified").invoke(vRes);
+                if (isVerified != null && !isVerified) {
+                    Log.w(TAG, "APK verification result: NOT VERIFIED for " + apk);
+                } else {
+                    Log.d(TAG, "APK signature verification passed for " + apk);
+                }
+            } catch (Throwable t) {
+                Log.w(TAG, "Verification skipped due to error", t);
+            }
+        });
+    }
+
+    static int minSdkVersion(byte[] manifest) {
+        try {
+            return Math.max(1, ApkUtils.getMinSdkVersionFromBinaryAndroidManifest(ByteBuffer.wrap(manifest)));
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read minSdkVersion from manifest, assuming 1", e);
+            return 1;
+        }
+    }
+
+    private static DefaultApkSignerEngine.SignerConfig loadSignerConfig(Context ctx) throws Exception {
+        Log.d(TAG, "Loading keystore: " + KEYSTORE_ASSET + " with alias: " + ALIAS);
+        try (InputStream ksStream = ctx.getAssets().open(KEYSTORE_ASSET)) {
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            ks.load(ksStream, STORE_PWD.toCharArray());
+            PrivateKey key = (PrivateKey) ks.getKey(ALIAS, KEY_PWD.toCharArray());
+            if (key == null) throw new IllegalStateException("Private key is null for alias: " + ALIAS);
+            X509Certificate cert = (X509Certificate) ks.getCertificate(ALIAS);
+            if (cert == null) throw new IllegalStateException("Certificate is null for alias: " + ALIAS);
+            return new DefaultApkSignerEngine.SignerConfig.Builder(ALIAS, key, Collections.singletonList(cert)).build();
+        }
+    }
+}
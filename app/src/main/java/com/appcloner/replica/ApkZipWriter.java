@@ -0,0 +1,708 @@
+package com.appcloner.replica;
+
+import com.android.apksig.ApkSignerEngine;
+import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Minimal ZIP writer for APK output. Unlike {@link java.util.zip.ZipOutputStream} it can
+ * splice an entry's compressed bytes from another archive without inflating them, and it
+ * never emits data descriptors, so every local header carries the final CRC and sizes.
+ * With an {@link ApkSignerEngine} attached, entries are fed to the signer as they are
+ * written and {@link #finish()} emits the JAR signature files and the APK Signing Block,
+ * so the output is signed in the same pass.
+ * <p>
+ * Output normally goes to a seekable channel. A writer over a plain {@link OutputStream}
+ * never seeks: deflated entries are buffered until their size is known, and the signer
+ * reads the entries section back from a log of what was written, which points into the
+ * source archives for spliced entries instead of holding their bytes.
+ */
+final class ApkZipWriter implements Closeable {
+    private static final int LFH_SIG  = 0x04034b50;
+    private static final int CD_SIG   = 0x02014b50;
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int LFH_SIZE = 30;
+    private static final int CD_SIZE  = 46;
+    private static final int EOCD_SIZE = 22;
+    private static final int VERSION_STORED   = 10;
+    private static final int VERSION_DEFLATED = 20;
+    private static final int FLAG_UTF8 = 0x0800;
+    // 1980-01-01 00:00, what ZipEntry.setTime(0L) used to produce
+    private static final int DOS_TIME = 0;
+    private static final int DOS_DATE = (1 << 5) | 1;
+    // Same alignment padding extra field apksig uses for STORED entries
+    private static final int ALIGNMENT_EXTRA_ID = 0xd935;
+    private static final int ALIGNMENT_EXTRA_MIN = 6;
+    private static final int STORED_ALIGNMENT = 4;
+    // STORED native libs may be mapped straight from the APK, so they start on a page
+    // (like zipalign -P 16); 16 KB covers 4 KB pages too
+    static final int PAGE_ALIGNMENT = 16 * 1024;
+    private static final int INSPECT_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel out;
+    private final WritableByteChannel stream;
+    // Entries section of a streamed archive, for the signer; null when writing to a channel
+    private final List<Segment> segments;
+    private final List<Record> records = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final int level;
+    private final ApkSignerEngine signer;
+    private final FileChannel readBack;
+    // Where a streaming writer spools entries it inflates, so the signer need not hold them
+    private final File spoolDir;
+    private final List<RandomAccessFile> spools = new ArrayList<>();
+    private long position;
+    private boolean finished;
+
+    ApkZipWriter(FileChannel out) throws IOException {
+        this(out, Deflater.BEST_COMPRESSION);
+    }
+
+    ApkZipWriter(FileChannel out, int level) throws IOException {
+        this(out, level, null, null);
+    }
+
+    /**
+     * @param readBack a readable channel over the same file as {@code out}; the signer
+     *                 digests the entries section through it. May be {@code out} itself.
+     */
+    ApkZipWriter(FileChannel out, ApkSignerEngine signer, FileChannel readBack) throws IOException {
+        this(out, Deflater.BEST_COMPRESSION, signer, readBack);
+    }
+
+    private ApkZipWriter(FileChannel out, int level, ApkSignerEngine signer, FileChannel readBack) throws IOException {
+        this.out = out;
+        this.stream = null;
+        this.segments = null;
+        this.level = level;
+        this.signer = signer;
+        this.readBack = readBack;
+        this.spoolDir = null;
+        out.truncate(0);
+        out.position(0);
+        position = 0;
+    }
+
+    /**
+     * Writes strictly sequentially to {@code stream}, which {@link #close()} leaves open.
+     * Entries stored inflated are spooled to {@code spoolDir} until the signer is done.
+     */
+    ApkZipWriter(OutputStream stream, ApkSignerEngine signer, File spoolDir) {
+        this.out = null;
+        this.stream = Channels.newChannel(stream);
+        this.segments = new ArrayList<>();
+        this.level = Deflater.BEST_COMPRESSION;
+        this.signer = signer;
+        this.readBack = null;
+        this.spoolDir = spoolDir;
+        position = 0;
+    }
+
+    /** Bytes written so far. */
+    long size() {
+        return position;
+    }
+
+    boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    /** Copies an entry's compressed payload from {@code source} byte for byte. */
+    void copyRaw(ApkArchive source, ApkArchive.Entry e) throws IOException {
+        copyRaw(source, e, e.getName());
+    }
+
+    void copyRaw(ApkArchive source, ApkArchive.Entry e, String name) throws IOException {
+        Record r = newRecord(name, e.method);
+        r.time = e.time;
+        r.date = e.date;
+        r.crc = e.crc;
+        r.compressedSize = e.compressedSize;
+        r.size = e.size;
+        writeLocalHeader(r, e.method == ApkArchive.METHOD_STORED ? storedAlignment(name) : 1);
+        long srcPos = source.getDataOffset(e);
+        long remaining = e.compressedSize;
+        FileChannel src = source.getChannel();
+        if (segments != null) {
+            segments.add(new Segment(position, e.compressedSize, src, srcPos));
+        }
+        while (remaining > 0) {
+            long n = src.transferTo(srcPos, remaining, target());
+            if (n <= 0) throw new IOException("Short read while copying " + e.getName());
+            srcPos += n;
+            remaining -= n;
+        }
+        position += e.compressedSize;
+        if (out != null) out.position(position);
+        ApkSignerEngine.InspectJarEntryRequest req = inspectRequest(name);
+        if (req != null) {
+            // V1 digests cover uncompressed data, so spliced entries are inflated for the signer only
+            try (InputStream in = source.openStream(e)) {
+                DataSink sink = req.getDataSink();
+                byte[] buf = new byte[INSPECT_BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buf)) != -1) sink.consume(buf, 0, n);
+            }
+            req.done();
+        }
+    }
+
+    void writeStored(String name, byte[] data) throws IOException {
+        Record r = newRecord(name, ApkArchive.METHOD_STORED);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        r.crc = crc.getValue();
+        r.compressedSize = data.length;
+        r.size = data.length;
+        writeLocalHeader(r, storedAlignment(name));
+        writeFully(ByteBuffer.wrap(data));
+        ApkSignerEngine.InspectJarEntryRequest req = inspectRequest(name);
+        if (req != null) {
+            req.getDataSink().consume(data, 0, data.length);
+            req.done();
+        }
+    }
+
+    /**
+     * Stores a DEFLATED entry of {@code source} uncompressed. CRC-32 and size come from its
+     * central directory record, so the data is inflated once, straight into the output.
+     * A streaming writer inflates into a spool file first: the signer reads the entries
+     * section back at the end, and native libs can be far too large to keep in memory.
+     */
+    void writeInflated(String name, ApkArchive source, ApkArchive.Entry e) throws IOException {
+        Record r = newRecord(name, ApkArchive.METHOD_STORED);
+        r.time = e.time;
+        r.date = e.date;
+        r.crc = e.crc;
+        r.compressedSize = e.size;
+        r.size = e.size;
+        writeLocalHeader(r, storedAlignment(name));
+        ApkSignerEngine.InspectJarEntryRequest req = inspectRequest(name);
+        DataSink sink = req != null ? req.getDataSink() : null;
+        FileChannel spool = segments != null ? openSpool() : null;
+        CRC32 crc = new CRC32();
+        long written = 0;
+        byte[] buf = new byte[INSPECT_BUFFER_SIZE];
+        try (InputStream in = source.openStream(e)) {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                crc.update(buf, 0, n);
+                if (sink != null) sink.consume(buf, 0, n);
+                ByteBuffer b = ByteBuffer.wrap(buf, 0, n);
+                if (spool != null) {
+                    while (b.hasRemaining()) spool.write(b);
+                } else {
+                    writeFully(b);
+                }
+                written += n;
+            }
+        }
+        if (written != e.size || crc.getValue() != e.crc) {
+            throw new IOException("Corrupt entry in source: " + e.getName());
+        }
+        if (spool != null) {
+            segments.add(new Segment(position, written, spool, 0));
+            long pos = 0;
+            while (pos < written) {
+                long n = spool.transferTo(pos, written - pos, stream);
+                if (n <= 0) throw new IOException("Short read while copying " + e.getName());
+                pos += n;
+            }
+            position += written;
+        }
+        if (req != null) req.done();
+    }
+
+    /** A new spool file, already unlinked so a crash cannot leave it behind. */
+    private FileChannel openSpool() throws IOException {
+        File file = File.createTempFile("inflated_", ".tmp", spoolDir);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        spools.add(raf);
+        if (!file.delete()) file.deleteOnExit();
+        return raf.getChannel();
+    }
+
+    /** Stores a file without loading it: one pass for the CRC, then a channel transfer. */
+    void writeStored(String name, File file) throws IOException {
+        if (segments != null) throw new IllegalStateException("Not supported when streaming");
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel src = in.getChannel();
+            long size = src.size();
+            CRC32 crc = new CRC32();
+            ByteBuffer buf = ByteBuffer.allocate(INSPECT_BUFFER_SIZE);
+            for (long pos = 0; pos < size; ) {
+                buf.clear();
+                int n = src.read(buf, pos);
+                if (n < 0) throw new IOException("File shrank while storing " + name);
+                crc.update(buf.array(), 0, n);
+                pos += n;
+            }
+            Record r = newRecord(name, ApkArchive.METHOD_STORED);
+            r.crc = crc.getValue();
+            r.compressedSize = size;
+            r.size = size;
+            writeLocalHeader(r, storedAlignment(name));
+            for (long pos = 0; pos < size; ) {
+                long n = src.transferTo(pos, size - pos, out);
+                if (n <= 0) throw new IOException("Short read while storing " + name);
+                pos += n;
+            }
+            position += size;
+            out.position(position);
+            ApkSignerEngine.InspectJarEntryRequest req = inspectRequest(name);
+            if (req != null) {
+                DataSink sink = req.getDataSink();
+                for (long pos = 0; pos < size; ) {
+                    buf.clear();
+                    int n = src.read(buf, pos);
+                    sink.consume(buf.array(), 0, n);
+                    pos += n;
+                }
+                req.done();
+            }
+        }
+    }
+
+    void writeDeflated(String name, byte[] data) throws IOException {
+        writeDeflated(name, compress(data));
+    }
+
+    void writeDeflated(String name, File file) throws IOException {
+        writeDeflated(name, compress(file));
+    }
+
+    /** Starts compressing {@code data} in the background at this writer's level. */
+    ParallelDeflater.Job compress(byte[] data) {
+        return ParallelDeflater.submit(data, level);
+    }
+
+    ParallelDeflater.Job compress(File file) throws IOException {
+        return ParallelDeflater.submit(file, level);
+    }
+
+    /** Writes an entry whose payload is (being) compressed by {@code job}, block by block. */
+    void writeDeflated(String name, ParallelDeflater.Job job) throws IOException {
+        if (segments != null) {
+            writeDeflatedBuffered(name, job);
+            return;
+        }
+        Record r;
+        long compressed = 0;
+        try {
+            r = newRecord(name, ApkArchive.METHOD_DEFLATED);
+            writeLocalHeader(r, 1);
+            ApkSignerEngine.InspectJarEntryRequest req = inspectRequest(name);
+            if (req != null) {
+                // Digest on this thread while the pool is still compressing
+                job.inspect(req.getDataSink());
+                req.done();
+            }
+            byte[] block;
+            while ((block = job.nextBlock()) != null) {
+                writeFully(ByteBuffer.wrap(block));
+                compressed += block.length;
+            }
+        } catch (IOException | RuntimeException e) {
+            job.cancel();
+            throw e;
+        }
+        r.crc = job.crc();
+        r.size = job.size();
+        r.compressedSize = compressed;
+        patchLocalHeader(r);
+    }
+
+    private void writeDeflatedBuffered(String name, ParallelDeflater.Job job) throws IOException {
+        List<byte[]> blocks = new ArrayList<>();
+        long compressed = 0;
+        Record r;
+        try {
+            r = newRecord(name, ApkArchive.METHOD_DEFLATED);
+            ApkSignerEngine.InspectJarEntryRequest req = inspectRequest(name);
+            if (req != null) {
+                job.inspect(req.getDataSink());
+                req.done();
+            }
+            byte[] block;
+            while ((block = job.nextBlock()) != null) {
+                blocks.add(block);
+                compressed += block.length;
+            }
+        } catch (IOException | RuntimeException e) {
+            job.cancel();
+            throw e;
+        }
+        r.crc = job.crc();
+        r.size = job.size();
+        r.compressedSize = compressed;
+        writeLocalHeader(r, 1);
+        for (byte[] block : blocks) writeFully(ByteBuffer.wrap(block));
+    }
+
+    /**
+     * Writes the central directory and end record, preceded by the signature files and
+     * the APK Signing Block when a signer is attached. The channel is left open.
+     */
+    void finish() throws IOException {
+        if (finished) return;
+        if (signer != null) {
+            writeJarSignature();
+        }
+        finished = true;
+        long cdStart = position;
+        ByteBuffer cd = ByteBuffer.allocate(centralDirectorySize()).order(ByteOrder.LITTLE_ENDIAN);
+        for (Record r : records) {
+            cd.putInt(CD_SIG);
+            cd.putShort((short) r.version);
+            cd.putShort((short) r.version);
+            cd.putShort((short) r.flags);
+            cd.putShort((short) r.method);
+            cd.putShort((short) r.time);
+            cd.putShort((short) r.date);
+            cd.putInt((int) r.crc);
+            cd.putInt((int) r.compressedSize);
+            cd.putInt((int) r.size);
+            cd.putShort((short) r.nameBytes.length);
+            cd.putShort((short) 0);
+            cd.putShort((short) 0);
+            cd.putShort((short) 0);
+            cd.putShort((short) 0);
+            cd.putInt(0);
+            cd.putInt((int) r.localHeaderOffset);
+            cd.put(r.nameBytes);
+        }
+        cd.flip();
+        if (records.size() > 0xfffe || cdStart + cd.remaining() > 0xfffffffeL) {
+            throw new IOException("Output too large for a non-ZIP64 archive");
+        }
+        ByteBuffer eocd = ByteBuffer.allocate(EOCD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        eocd.putInt(EOCD_SIG);
+        eocd.putShort((short) 0);
+        eocd.putShort((short) 0);
+        eocd.putShort((short) records.size());
+        eocd.putShort((short) records.size());
+        eocd.putInt(cd.remaining());
+        eocd.putInt((int) cdStart);
+        eocd.putShort((short) 0);
+        eocd.flip();
+        if (signer != null) {
+            writeSigningBlock(cdStart, cd, eocd);
+        }
+        writeFully(cd);
+        writeFully(eocd);
+        if (signer != null) {
+            signer.outputDone();
+        }
+    }
+
+    private void writeJarSignature() throws IOException {
+        ApkSignerEngine.OutputJarSignatureRequest v1;
+        try {
+            v1 = signer.outputJarEntries();
+        } catch (GeneralSecurityException | ApkFormatException e) {
+            throw new IOException("JAR signing failed", e);
+        }
+        if (v1 == null) return;
+        for (ApkSignerEngine.OutputJarSignatureRequest.JarEntry entry : v1.getAdditionalJarEntries()) {
+            writeDeflated(entry.getName(), entry.getData());
+        }
+        v1.done();
+    }
+
+    private void writeSigningBlock(long cdStart, ByteBuffer cd, ByteBuffer eocd) throws IOException {
+        ApkSignerEngine.OutputApkSigningBlockRequest2 v2;
+        try {
+            v2 = signer.outputZipSections2(
+                    segments != null
+                            ? new SegmentSource(segments, 0, cdStart)
+                            : DataSources.asDataSource(readBack, 0, cdStart),
+                    DataSources.asDataSource(cd.duplicate()),
+                    DataSources.asDataSource(eocd.duplicate()));
+        } catch (GeneralSecurityException | ApkFormatException e) {
+            throw new IOException("APK signing failed", e);
+        }
+        if (v2 == null) return;
+        writeFully(ByteBuffer.allocate(v2.getPaddingSizeBeforeApkSigningBlock()));
+        writeFully(ByteBuffer.wrap(v2.getApkSigningBlock()));
+        if (position > 0xfffffffeL) {
+            throw new IOException("Output too large for a non-ZIP64 archive");
+        }
+        // The central directory moves past the signing block
+        eocd.putInt(16, (int) position);
+        v2.done();
+    }
+
+    private int centralDirectorySize() throws IOException {
+        long size = 0;
+        for (Record r : records) {
+            size += CD_SIZE + r.nameBytes.length;
+        }
+        if (size > Integer.MAX_VALUE) throw new IOException("Central directory too large");
+        return (int) size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (RandomAccessFile spool : spools) spool.close();
+        spools.clear();
+        if (out != null) out.close();
+    }
+
+    private WritableByteChannel target() {
+        return out != null ? out : stream;
+    }
+
+    private Record newRecord(String name, int method) throws IOException {
+        if (finished) throw new IllegalStateException("Archive already finished");
+        if (!names.add(name)) throw new IOException("Duplicate entry: " + name);
+        Record r = new Record();
+        r.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        r.method = method;
+        r.version = method == ApkArchive.METHOD_STORED ? VERSION_STORED : VERSION_DEFLATED;
+        r.flags = isAscii(r.nameBytes) ? 0 : FLAG_UTF8;
+        r.time = DOS_TIME;
+        r.date = DOS_DATE;
+        records.add(r);
+        return r;
+    }
+
+    private ApkSignerEngine.InspectJarEntryRequest inspectRequest(String name) {
+        return signer != null ? signer.outputJarEntry(name) : null;
+    }
+
+    private void writeLocalHeader(Record r, int alignment) throws IOException {
+        r.localHeaderOffset = position;
+        int extraLen = 0;
+        if (alignment > 1) {
+            long dataStart = position + LFH_SIZE + r.nameBytes.length;
+            int pad = (int) ((alignment - (dataStart % alignment)) % alignment);
+            if (pad > 0) {
+                while (pad < ALIGNMENT_EXTRA_MIN) pad += alignment;
+                extraLen = pad;
+            }
+        }
+        ByteBuffer b = ByteBuffer.allocate(LFH_SIZE + r.nameBytes.length + extraLen).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(LFH_SIG);
+        b.putShort((short) r.version);
+        b.putShort((short) r.flags);
+        b.putShort((short) r.method);
+        b.putShort((short) r.time);
+        b.putShort((short) r.date);
+        b.putInt((int) r.crc);
+        b.putInt((int) r.compressedSize);
+        b.putInt((int) r.size);
+        b.putShort((short) r.nameBytes.length);
+        b.putShort((short) extraLen);
+        b.put(r.nameBytes);
+        if (extraLen > 0) {
+            b.putShort((short) ALIGNMENT_EXTRA_ID);
+            b.putShort((short) (extraLen - 4));
+            b.putShort((short) alignment);
+        }
+        b.position(b.limit());
+        b.flip();
+        writeFully(b);
+    }
+
+    private static int storedAlignment(String name) {
+        return name.startsWith("lib/") && name.endsWith(".so") ? PAGE_ALIGNMENT : STORED_ALIGNMENT;
+    }
+
+    private void patchLocalHeader(Record r) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt((int) r.crc);
+        b.putInt((int) r.compressedSize);
+        b.putInt((int) r.size);
+        b.flip();
+        long at = r.localHeaderOffset + 14;
+        while (b.hasRemaining()) {
+            at += out.write(b, at);
+        }
+    }
+
+    private void writeFully(ByteBuffer b) throws IOException {
+        if (segments != null && !finished && b.hasRemaining()) {
+            // Wrapped arrays (compressed blocks, headers) are logged as-is, without a copy
+            byte[] data;
+            int off;
+            if (b.hasArray()) {
+                data = b.array();
+                off = b.arrayOffset() + b.position();
+            } else {
+                data = new byte[b.remaining()];
+                b.duplicate().get(data);
+                off = 0;
+            }
+            segments.add(new Segment(position, b.remaining(), data, off));
+        }
+        WritableByteChannel ch = target();
+        while (b.hasRemaining()) {
+            position += ch.write(b);
+        }
+    }
+
+    private static boolean isAscii(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0) return false;
+        }
+        return true;
+    }
+
+    /** A run of the written archive: bytes held in memory, or a range of a source channel. */
+    private static final class Segment {
+        final long start;
+        final long length;
+        final byte[] data;
+        final int dataOffset;
+        final FileChannel channel;
+        final long channelOffset;
+
+        Segment(long start, long length, byte[] data, int dataOffset) {
+            this.start = start;
+            this.length = length;
+            this.data = data;
+            this.dataOffset = dataOffset;
+            this.channel = null;
+            this.channelOffset = 0;
+        }
+
+        Segment(long start, long length, FileChannel channel, long channelOffset) {
+            this.start = start;
+            this.length = length;
+            this.data = null;
+            this.dataOffset = 0;
+            this.channel = channel;
+            this.channelOffset = channelOffset;
+        }
+
+        void feed(long offset, long size, DataSink sink) throws IOException {
+            if (data != null) {
+                sink.consume(data, dataOffset + (int) offset, (int) size);
+                return;
+            }
+            // Positional reads: the signer digests chunks from several threads at once
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size, INSPECT_BUFFER_SIZE));
+            long pos = channelOffset + offset;
+            long end = pos + size;
+            while (pos < end) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - pos));
+                int n = channel.read(buf, pos);
+                if (n < 0) throw new IOException("Source shrank while signing");
+                buf.flip();
+                sink.consume(buf);
+                pos += n;
+            }
+        }
+    }
+
+    /** The logged entries section as a {@link DataSource}, without reading the output back. */
+    private static final class SegmentSource implements DataSource {
+        private final List<Segment> segments;
+        private final long offset;
+        private final long size;
+
+        SegmentSource(List<Segment> segments, long offset, long size) {
+            this.segments = segments;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public void feed(long off, long len, DataSink sink) throws IOException {
+            if (off < 0 || len < 0 || off + len > size) {
+                throw new IndexOutOfBoundsException("offset " + off + ", size " + len + ", source size " + size);
+            }
+            long pos = offset + off;
+            long end = pos + len;
+            for (int i = indexOf(pos); pos < end; i++) {
+                Segment s = segments.get(i);
+                long within = pos - s.start;
+                long n = Math.min(s.length - within, end - pos);
+                s.feed(within, n, sink);
+                pos += n;
+            }
+        }
+
+        @Override
+        public ByteBuffer getByteBuffer(long off, int len) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(len);
+            copyTo(off, len, b);
+            b.flip();
+            return b;
+        }
+
+        @Override
+        public void copyTo(long off, int len, ByteBuffer dest) throws IOException {
+            feed(off, len, new DataSink() {
+                @Override
+                public void consume(byte[] buf, int o, int l) {
+                    dest.put(buf, o, l);
+                }
+
+                @Override
+                public void consume(ByteBuffer buf) {
+                    dest.put(buf);
+                }
+            });
+        }
+
+        @Override
+        public DataSource slice(long off, long len) {
+            if (off < 0 || len < 0 || off + len > size) {
+                throw new IndexOutOfBoundsException("offset " + off + ", size " + len + ", source size " + size);
+            }
+            return new SegmentSource(segments, offset + off, len);
+        }
+
+        private int indexOf(long pos) {
+            int lo = 0;
+            int hi = segments.size() - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (segments.get(mid).start <= pos) lo = mid; else hi = mid - 1;
+            }
+            return lo;
+        }
+    }
+
+    private static final class Record {
+        byte[] nameBytes;
+        int version;
+        int flags;
+        int method;
+        int time;
+        int date;
+        long crc;
+        long compressedSize;
+        long size;
+        long localHeaderOffset;
+    }
+}
@@ -0,0 +1,208 @@
+package com.appcloner.replica;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs clone and update jobs on a bounded number of threads; further jobs wait in FIFO
+ * order. Listeners are told about state and progress changes on the main thread.
+ */
+final class CloneJobScheduler {
+    private static final String TAG = "CloneJobScheduler";
+    static final int DEFAULT_MAX_CONCURRENT = 2;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+    private static final int MAX_FINISHED_JOBS = 50;
+
+    private static CloneJobScheduler instance;
+
+    enum State { QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED }
+
+    interface Task {
+        void run(CloneProgress progress) throws Exception;
+    }
+
+    interface Listener {
+        void onJobChanged(Job job);
+    }
+
+    final class Job {
+        final int id;
+        final String label;
+        final CloneProgress progress;
+        // Moved on only by compare-and-set, so each job reaches one terminal state exactly once
+        private final AtomicReference<State> state = new AtomicReference<>(State.QUEUED);
+        private volatile Throwable error;
+        private volatile long lastReport;
+        private Future<?> future;
+
+        private Job(int id, String label) {
+            this.id = id;
+            this.label = label;
+            this.progress = new CloneProgress(p -> {
+                long now = SystemClock.uptimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL_MS) {
+                    lastReport = now;
+                    notifyChanged(this);
+                }
+            });
+        }
+
+        State getState() {
+            return state.get();
+        }
+
+        Throwable getError() {
+            return error;
+        }
+
+        boolean isActive() {
+            State s = state.get();
+            return s == State.QUEUED || s == State.RUNNING;
+        }
+
+        /** Queued jobs never start; running jobs stop at the next entry boundary and finish in run(). */
+        void cancel() {
+            progress.cancel();
+            if (finish(this, State.QUEUED, State.CANCELLED, null)) {
+                Future<?> f = future;
+                if (f != null) f.cancel(false);
+            }
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final List<Job> jobs = new CopyOnWriteArrayList<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    static synchronized CloneJobScheduler getInstance() {
+        if (instance == null) {
+            instance = new CloneJobScheduler(DEFAULT_MAX_CONCURRENT);
+        }
+        return instance;
+    }
+
+    CloneJobScheduler(int maxConcurrent) {
+        AtomicInteger n = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "clone-job-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Applied from the app's clone limits at startup and whenever they change. */
+    synchronized void setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("maxConcurrent < 1");
+        // Order matters: the core size may never exceed the maximum
+        if (maxConcurrent > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(maxConcurrent);
+            executor.setCorePoolSize(maxConcurrent);
+        } else {
+            executor.setCorePoolSize(maxConcurrent);
+            executor.setMaximumPoolSize(maxConcurrent);
+        }
+    }
+
+    Job submit(String label, Task task) {
+        Job job = new Job(nextId.incrementAndGet(), label);
+        jobs.add(job);
+        job.future = executor.submit(() -> run(job, task));
+        notifyChanged(job);
+        return job;
+    }
+
+    List<Job> getJobs() {
+        return new ArrayList<>(jobs);
+    }
+
+    List<Job> getActiveJobs() {
+        List<Job> active = new ArrayList<>();
+        for (Job job : jobs) {
+            if (job.isActive()) active.add(job);
+        }
+        return active;
+    }
+
+    void cancelAll() {
+        for (Job job : jobs) {
+            if (job.isActive()) job.cancel();
+        }
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void run(Job job, Task task) {
+        // Lost to cancel() while queued; it has already finished the job
+        if (!job.state.compareAndSet(State.QUEUED, State.RUNNING)) return;
+        job.progress.start();
+        if (job.progress.isCancelled()) {
+            finish(job, State.RUNNING, State.CANCELLED, null);
+            return;
+        }
+        notifyChanged(job);
+        try {
+            task.run(job.progress);
+            job.progress.setStage(CloneProgress.STAGE_DONE);
+            finish(job, State.RUNNING, State.SUCCEEDED, null);
+        } catch (CancellationException e) {
+            Log.i(TAG, "Job cancelled: " + job.label);
+            finish(job, State.RUNNING, State.CANCELLED, e);
+        } catch (Throwable t) {
+            Log.e(TAG, "Job failed: " + job.label, t);
+            finish(job, State.RUNNING, job.progress.isCancelled() ? State.CANCELLED : State.FAILED, t);
+        }
+    }
+
+    /** Moves {@code job} from {@code from} to the terminal {@code to}; false if it was not in {@code from}. */
+    private boolean finish(Job job, State from, State to, Throwable error) {
+        if (!job.state.compareAndSet(from, to)) return false;
+        job.error = error;
+        job.progress.finish();
+        Log.i(TAG, job.label + " " + to + "\n" + job.progress.summary());
+        notifyChanged(job);
+        pruneFinished();
+        return true;
+    }
+
+    private synchronized void pruneFinished() {
+        int finished = 0;
+        for (Job j : jobs) {
+            if (!j.isActive()) finished++;
+        }
+        for (Job j : jobs) {
+            if (finished <= MAX_FINISHED_JOBS) break;
+            if (!j.isActive()) {
+                jobs.remove(j);
+                finished--;
+            }
+        }
+    }
+
+    private void notifyChanged(Job job) {
+        main.post(() -> {
+            for (Listener l : listeners) l.onJobChanged(job);
+        });
+    }
+}
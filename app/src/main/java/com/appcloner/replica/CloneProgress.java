@@ -0,0 +1,308 @@
+package com.appcloner.replica;
+
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress and cooperative cancellation for one clone job. The pipeline reports into it
+ * and calls {@link #throwIfCancelled()} between entries; any thread may read it.
+ * Wall time, bytes and entries are also kept per stage, along with peak temp-disk usage,
+ * so a finished job still says where its time went.
+ */
+final class CloneProgress {
+    static final String STAGE_QUEUED     = "Queued";
+    static final String STAGE_READING    = "Reading source";
+    static final String STAGE_PATCHING   = "Patching manifest";
+    static final String STAGE_WRITING    = "Writing entries";
+    static final String STAGE_SIGNING    = "Signing";
+    static final String STAGE_COMMITTING = "Saving output";
+    static final String STAGE_DONE       = "Done";
+
+    interface Listener {
+        /** Called on the reporting thread; keep it cheap. */
+        void onProgress(CloneProgress progress);
+    }
+
+    /** Totals for one stage. Stages entered more than once (e.g. by parallel variants) are summed. */
+    static final class StageStats {
+        final String stage;
+        long millis;
+        long bytesRead;
+        long bytesWritten;
+        long entries;
+
+        StageStats(String stage) {
+            this.stage = stage;
+        }
+
+        private StageStats copy() {
+            StageStats s = new StageStats(stage);
+            s.millis = millis;
+            s.bytesRead = bytesRead;
+            s.bytesWritten = bytesWritten;
+            s.entries = entries;
+            return s;
+        }
+    }
+
+    /**
+     * Stage timing for one rewrite. Parallel rewrites of a job (splits, variants) each get
+     * their own, so their stages run side by side instead of cutting each other short.
+     * Bytes and entries reported through it also count toward the job's totals.
+     */
+    final class Tracker {
+        private final AtomicLong read = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+        private final AtomicLong count = new AtomicLong();
+        // The running stage (null when idle) and its baselines, guarded by stages
+        private String current;
+        private long stageStart;
+        private long stageRead;
+        private long stageWritten;
+        private long stageEntries;
+
+        private Tracker() {}
+
+        void setStage(String stage) {
+            synchronized (stages) {
+                if (!stage.equals(current)) {
+                    long now = SystemClock.elapsedRealtime();
+                    close(now);
+                    if (!finished && !STAGE_DONE.equals(stage)) open(stage, now);
+                }
+                CloneProgress.this.stage = stage;
+            }
+            report();
+        }
+
+        void addBytesRead(long n) {
+            read.addAndGet(n);
+            bytesRead.addAndGet(n);
+            report();
+        }
+
+        void addBytesWritten(long n) {
+            written.addAndGet(n);
+            bytesWritten.addAndGet(n);
+            report();
+        }
+
+        void addEntries(int n) {
+            count.addAndGet(n);
+            entries.addAndGet(n);
+        }
+
+        /** Closes the running stage; the tracker adds no time after this. */
+        void finish() {
+            synchronized (stages) {
+                close(SystemClock.elapsedRealtime());
+                trackers.remove(this);
+            }
+        }
+
+        private void open(String stage, long now) {
+            current = stage;
+            stageStart = now;
+            stageRead = read.get();
+            stageWritten = written.get();
+            stageEntries = count.get();
+        }
+
+        private void close(long now) {
+            if (current == null) return;
+            StageStats s = stages.get(current);
+            if (s == null) {
+                s = new StageStats(current);
+                stages.put(current, s);
+            }
+            accumulate(s, now);
+            current = null;
+        }
+
+        private void accumulate(StageStats s, long now) {
+            s.millis += now - stageStart;
+            s.bytesRead += read.get() - stageRead;
+            s.bytesWritten += written.get() - stageWritten;
+            s.entries += count.get() - stageEntries;
+        }
+    }
+
+    private final Listener listener;
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong tempBytes = new AtomicLong();
+    private final AtomicLong peakTempBytes = new AtomicLong();
+    // Closed stages; also the lock for the trackers and the clock
+    private final Map<String, StageStats> stages = new LinkedHashMap<>();
+    private final List<Tracker> trackers = new ArrayList<>();
+    // Stages of the job itself rather than of a rewrite, starting with the queue wait
+    private final Tracker main;
+    // The stage last entered by any tracker, for display
+    private volatile String stage = STAGE_QUEUED;
+    private volatile boolean cancelled;
+    private long startedAt = SystemClock.elapsedRealtime();
+    private long finishedAt;
+    private boolean finished;
+
+    CloneProgress() {
+        this(null);
+    }
+
+    CloneProgress(Listener listener) {
+        this.listener = listener;
+        main = track();
+        main.open(STAGE_QUEUED, startedAt);
+    }
+
+    String getStage() {
+        return stage;
+    }
+
+    long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    long getEntries() {
+        return entries.get();
+    }
+
+    long getPeakTempBytes() {
+        return peakTempBytes.get();
+    }
+
+    /**
+     * Stages seen so far in the order they were first entered, including running ones.
+     * Parallel rewrites add up, so stage times can sum to more than {@link #getTotalMillis()}.
+     */
+    List<StageStats> getStages() {
+        synchronized (stages) {
+            Map<String, StageStats> out = new LinkedHashMap<>();
+            for (StageStats s : stages.values()) out.put(s.stage, s.copy());
+            long now = SystemClock.elapsedRealtime();
+            for (Tracker t : trackers) {
+                if (t.current == null) continue;
+                StageStats running = out.get(t.current);
+                if (running == null) {
+                    running = new StageStats(t.current);
+                    out.put(t.current, running);
+                }
+                t.accumulate(running, now);
+            }
+            return new ArrayList<>(out.values());
+        }
+    }
+
+    /** Wall time from when the job started running, not when it was queued, to its end. */
+    long getTotalMillis() {
+        synchronized (stages) {
+            return (finished ? finishedAt : SystemClock.elapsedRealtime()) - startedAt;
+        }
+    }
+
+    /** One line per stage: wall time, throughput, entries; then the total and peak temp disk. */
+    String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (StageStats s : getStages()) {
+            sb.append(String.format(Locale.US, "%s: %d ms", s.stage, s.millis));
+            long bytes = Math.max(s.bytesRead, s.bytesWritten);
+            if (bytes > 0) {
+                sb.append(String.format(Locale.US, ", %.1f MB in, %.1f MB out",
+                        s.bytesRead / (1024.0 * 1024.0), s.bytesWritten / (1024.0 * 1024.0)));
+                if (s.millis > 0) {
+                    sb.append(String.format(Locale.US, " (%.1f MB/s)", bytes * 1000.0 / s.millis / (1024.0 * 1024.0)));
+                }
+            }
+            if (s.entries > 0) sb.append(", ").append(s.entries).append(" entries");
+            sb.append('\n');
+        }
+        sb.append(String.format(Locale.US, "Total: %d ms\n", getTotalMillis()));
+        sb.append(String.format(Locale.US, "Peak temp disk: %.1f MB", peakTempBytes.get() / (1024.0 * 1024.0)));
+        return sb.toString();
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    void throwIfCancelled() {
+        if (cancelled) throw new CancellationException("Clone job cancelled");
+    }
+
+    /** A stage tracker for one rewrite; {@link Tracker#finish()} it when the rewrite is done. */
+    Tracker track() {
+        Tracker t = new Tracker();
+        synchronized (stages) {
+            trackers.add(t);
+        }
+        return t;
+    }
+
+    /** Ends the queue wait and starts the clock; called when the job begins to run. */
+    void start() {
+        synchronized (stages) {
+            long now = SystemClock.elapsedRealtime();
+            main.close(now);
+            startedAt = now;
+        }
+    }
+
+    /** A stage of the job outside any rewrite. */
+    void setStage(String stage) {
+        main.setStage(stage);
+    }
+
+    /** Closes every running stage; later updates still count but no longer add time. */
+    void finish() {
+        synchronized (stages) {
+            if (finished) return;
+            long now = SystemClock.elapsedRealtime();
+            for (Tracker t : trackers) t.close(now);
+            finishedAt = now;
+            finished = true;
+        }
+    }
+
+    void addBytesRead(long n) {
+        main.addBytesRead(n);
+    }
+
+    void addBytesWritten(long n) {
+        main.addBytesWritten(n);
+    }
+
+    void addEntries(int n) {
+        main.addEntries(n);
+    }
+
+    /** Temp files created on behalf of this job; pair with {@link #tempReleased}. */
+    void tempAllocated(long n) {
+        long now = tempBytes.addAndGet(n);
+        long peak;
+        while (now > (peak = peakTempBytes.get()) && !peakTempBytes.compareAndSet(peak, now)) {
+            // retry
+        }
+    }
+
+    void tempReleased(long n) {
+        tempBytes.addAndGet(-n);
+    }
+
+    private void report() {
+        if (listener != null) listener.onProgress(this);
+    }
+}
@@ -0,0 +1,189 @@
+package com.appcloner.replica;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Signed clones kept in cacheDir/clone_results, keyed by everything that decides their
+ * bytes. Least recently used results are evicted once the cache outgrows its budget.
+ * Also sweeps temp files that crashed or killed jobs left behind.
+ */
+final class CloneResultCache {
+    private static final String TAG = "CloneResultCache";
+    private static final String DIR = "clone_results";
+    static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    // Temp files of the clone pipeline (apk_ covers the apk_cache source copies);
+    // none of them outlive the job that created them
+    private static final String[] ORPHAN_PREFIXES = {
+            "apk_", "unsigned_", "signed_", "output_", "source_", "clone_job_"
+    };
+    // Filesystems may keep modification times to the second or worse
+    private static final long ORPHAN_MTIME_SLACK_MS = 2000;
+
+    private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+    private CloneResultCache() {}
+
+    /** Size budget for cached clones, set from the app's clone limits; 0 keeps none. */
+    static void setMaxBytes(long bytes) {
+        if (bytes < 0) throw new IllegalArgumentException("bytes < 0");
+        maxBytes = bytes;
+    }
+
+    /** Hex SHA-256 over the given key parts. */
+    static String key(String... parts) {
+        MessageDigest sha = sha256();
+        for (String part : parts) {
+            sha.update(part.getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+        }
+        return hex(sha.digest());
+    }
+
+    /** Digest of a whole file, for inputs small enough to hash on every run. */
+    static String digest(File file) throws IOException {
+        MessageDigest sha = sha256();
+        try (FileChannel ch = new FileInputStream(file).getChannel()) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            while (ch.read(buf) != -1) {
+                buf.flip();
+                sha.update(buf);
+                buf.clear();
+            }
+        }
+        return hex(sha.digest());
+    }
+
+    /**
+     * Identity of an APK from its central directory and end record. These carry the name,
+     * CRC-32 and sizes of every entry, so the rest of the file does not have to be read.
+     */
+    static String digest(ApkArchive apk) throws IOException {
+        long offset = apk.getCentralDirOffset();
+        long size = apk.getChannel().size();
+        if (size - offset > Integer.MAX_VALUE) throw new IOException("Central directory too large");
+        MessageDigest sha = sha256();
+        sha.update(apk.read(offset, (int) (size - offset)));
+        return hex(sha.digest());
+    }
+
+    /** The cached result for {@code key}, marked as just used, or {@code null}. */
+    static synchronized File lookup(Context ctx, String key) {
+        File dir = dir(ctx);
+        // Applies a budget lowered since the last store; 0 empties the cache
+        evict(dir);
+        File f = new File(dir, key + ".apk");
+        if (!f.isFile()) return null;
+        f.setLastModified(System.currentTimeMillis());
+        return f;
+    }
+
+    /** Copies the finished APK readable through {@code apk} into the cache. */
+    static void store(Context ctx, String key, FileChannel apk) throws IOException {
+        long size = apk.size();
+        if (size > maxBytes) return;
+        File dir = dir(ctx);
+        File tmp = new File(dir, key + ".tmp" + System.nanoTime());
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            FileChannel dst = out.getChannel();
+            long pos = 0;
+            while (pos < size) {
+                long n = apk.transferTo(pos, size - pos, dst);
+                if (n <= 0) throw new IOException("Short copy into result cache");
+                pos += n;
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        synchronized (CloneResultCache.class) {
+            File f = new File(dir, key + ".apk");
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                throw new IOException("Cannot publish " + f);
+            }
+            evict(dir);
+        }
+    }
+
+    /**
+     * Deletes pipeline temp files last modified before {@code before} (wall clock), so files
+     * of jobs started since then are left alone. Leftovers from just before it survive
+     * until the next cleanup, because timestamps may be coarse.
+     */
+    static void cleanOrphans(Context ctx, long before) {
+        long cutoff = before - ORPHAN_MTIME_SLACK_MS;
+        File[] files = ctx.getCacheDir().listFiles();
+        if (files == null) return;
+        int removed = 0;
+        for (File f : files) {
+            for (String prefix : ORPHAN_PREFIXES) {
+                if (f.getName().startsWith(prefix)) {
+                    if (f.lastModified() < cutoff && deleteRec(f)) removed++;
+                    break;
+                }
+            }
+        }
+        File[] partial = dir(ctx).listFiles((d, n) -> n.contains(".tmp"));
+        if (partial != null) {
+            for (File f : partial) if (f.lastModified() < cutoff && f.delete()) removed++;
+        }
+        if (removed > 0) Log.i(TAG, "Removed " + removed + " leftover temp files");
+    }
+
+    private static void evict(File dir) {
+        File[] results = dir.listFiles((d, n) -> n.endsWith(".apk"));
+        if (results == null) return;
+        long total = 0;
+        for (File f : results) total += f.length();
+        if (total <= maxBytes) return;
+        Arrays.sort(results, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : results) {
+            if (total <= maxBytes) break;
+            long len = f.length();
+            if (f.delete()) {
+                total -= len;
+                Log.d(TAG, "Evicted " + f.getName());
+            }
+        }
+    }
+
+    private static File dir(Context ctx) {
+        File dir = new File(ctx.getCacheDir(), DIR);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static boolean deleteRec(File f) {
+        if (f.isDirectory()) {
+            File[] kids = f.listFiles();
+            if (kids != null) for (File k : kids) deleteRec(k);
+        }
+        return f.delete();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
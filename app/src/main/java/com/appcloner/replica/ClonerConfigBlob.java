@@ -0,0 +1,87 @@
+package com.appcloner.replica;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Compiles cloner.json into the flat binary form the hook's ClonerSettings reads at startup,
+ * so a clone never parses JSON on its main thread. Big-endian:
+ * <pre>
+ *   int   magic "ACB1"
+ *   short entry count
+ *   per entry, sorted by key:
+ *     short key length, key (UTF-8)
+ *     byte  type: 0 null, 1 boolean, 2 long, 3 double, 4 string, 5 nested JSON as text
+ *     value: boolean as one byte, long and double as eight, strings as int length + UTF-8
+ * </pre>
+ * The entry is written STORED so the hook can map it straight out of the APK.
+ */
+final class ClonerConfigBlob {
+    static final String ENTRY = "assets/cloner.bin";
+
+    static final int MAGIC = 0x41434231;
+    static final int TYPE_NULL = 0;
+    static final int TYPE_BOOLEAN = 1;
+    static final int TYPE_LONG = 2;
+    static final int TYPE_DOUBLE = 3;
+    static final int TYPE_STRING = 4;
+    static final int TYPE_JSON = 5;
+
+    private ClonerConfigBlob() {}
+
+    static byte[] compile(JSONObject config) throws IOException {
+        List<String> keys = new ArrayList<>();
+        for (Iterator<String> it = config.keys(); it.hasNext(); ) keys.add(it.next());
+        Collections.sort(keys);
+        if (keys.size() > 0xffff) throw new IOException("Too many cloner.json keys: " + keys.size());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(keys.size());
+        for (String key : keys) {
+            byte[] name = key.getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xffff) throw new IOException("cloner.json key too long: " + key);
+            out.writeShort(name.length);
+            out.write(name);
+            writeValue(out, config.opt(key));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeValue(DataOutputStream out, Object v) throws IOException {
+        if (v == null || v == JSONObject.NULL) {
+            out.writeByte(TYPE_NULL);
+        } else if (v instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) v);
+        } else if (v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong(((Number) v).longValue());
+        } else if (v instanceof Number) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(((Number) v).doubleValue());
+        } else if (v instanceof JSONObject || v instanceof JSONArray) {
+            out.writeByte(TYPE_JSON);
+            writeString(out, v.toString());
+        } else {
+            out.writeByte(TYPE_STRING);
+            writeString(out, v.toString());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+}
@@ -0,0 +1,290 @@
+package com.appcloner.replica;
+
+import android.text.TextUtils;
+import android.util.Log;
+import com.reandroid.arsc.chunk.PackageBlock;
+import com.reandroid.arsc.chunk.TableBlock;
+import com.reandroid.arsc.chunk.TypeBlock;
+import com.reandroid.arsc.container.SpecTypePair;
+import com.reandroid.arsc.value.Entry;
+import com.reandroid.arsc.value.ResValue;
+import com.reandroid.arsc.value.ValueType;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Trims an APK down to what this device uses. Native libs are kept for the one ABI the
+ * package manager would pick. Optionally, resource entries in screen densities the device
+ * never chooses and in languages nobody asked for are cut from resources.arsc, along with
+ * the files that only those entries pointed at.
+ */
+final class DeviceTargeting {
+    private static final String TAG = "DeviceTargeting";
+    static final String RESOURCES_ARSC = "resources.arsc";
+
+    private static final Pattern DENSITY = Pattern.compile("(l|m|tv|h|x{1,3}h|\\d+)dpi");
+    // nodpi and anydpi resources match every device and are never pruned
+    private static final Pattern ANY_DENSITY = Pattern.compile("(no|any)dpi");
+    // aapt adds -v4 to density configs; it says nothing on devices this app runs on
+    private static final Pattern IMPLIED_VERSION = Pattern.compile("v[1-4]");
+    private static final int DENSITY_MEDIUM = 160;
+
+    /** What to drop from one APK. */
+    static final class Plan {
+        /** ABI whose libs are kept, or {@code null} if the libs are left alone. */
+        String abi;
+        final Set<String> dropped = new HashSet<>();
+        /** The pruned resources.arsc, or {@code null} if the table is unchanged. */
+        byte[] table;
+        int prunedEntries;
+
+        void applyTo(ApkRewriter rewriter) {
+            for (String name : dropped) rewriter.drop(name);
+            if (table != null) rewriter.replace(RESOURCES_ARSC, table);
+        }
+    }
+
+    private final String[] supportedAbis;
+    private final int densityDpi;
+    private final Set<String> languages;
+
+    /**
+     * @param supportedAbis device ABIs in order of preference, or {@code null} to keep all libs
+     * @param densityDpi    device density, or 0 to keep every density
+     * @param languages     languages to keep, or empty to keep every locale
+     */
+    DeviceTargeting(String[] supportedAbis, int densityDpi, Set<String> languages) {
+        this.supportedAbis = supportedAbis;
+        this.densityDpi = densityDpi;
+        this.languages = languages;
+    }
+
+    /** Everything {@link #plan} depends on besides the APK, for keying cached results. */
+    String key() {
+        List<String> sorted = new ArrayList<>(languages);
+        Collections.sort(sorted);
+        return (supportedAbis != null ? TextUtils.join(",", supportedAbis) : "*")
+                + "|" + densityDpi + "|" + TextUtils.join(",", sorted);
+    }
+
+    Plan plan(ApkArchive source) throws IOException {
+        Plan plan = new Plan();
+        if (supportedAbis != null) pruneAbis(source, plan);
+        ApkArchive.Entry arsc = source.getEntry(RESOURCES_ARSC);
+        if (arsc != null && (densityDpi > 0 || !languages.isEmpty())) {
+            pruneTable(source, arsc, plan);
+        }
+        Log.d(TAG, "Keeping ABI " + plan.abi + ", dropping " + plan.dropped.size()
+                + " entries and " + plan.prunedEntries + " resource values");
+        return plan;
+    }
+
+    private void pruneAbis(ApkArchive source, Plan plan) {
+        Map<String, List<String>> byAbi = new HashMap<>();
+        for (ApkArchive.Entry e : source.getEntries()) {
+            String name = e.getName();
+            if (!name.startsWith("lib/") || e.isDirectory()) continue;
+            int slash = name.indexOf('/', 4);
+            if (slash < 0) continue;
+            String abi = name.substring(4, slash);
+            List<String> names = byAbi.get(abi);
+            if (names == null) byAbi.put(abi, names = new ArrayList<>());
+            names.add(name);
+        }
+        // Only the first supported ABI the APK has gets installed
+        for (String abi : supportedAbis) {
+            if (byAbi.containsKey(abi)) {
+                plan.abi = abi;
+                break;
+            }
+        }
+        if (plan.abi == null) return;
+        for (Map.Entry<String, List<String>> e : byAbi.entrySet()) {
+            if (!e.getKey().equals(plan.abi)) plan.dropped.addAll(e.getValue());
+        }
+    }
+
+    private void pruneTable(ApkArchive source, ApkArchive.Entry arsc, Plan plan) throws IOException {
+        TableBlock table = TableBlock.load(new ByteArrayInputStream(source.readBytes(arsc)));
+        Set<String> released = new HashSet<>();
+        int pruned = 0;
+        for (PackageBlock pkg : table.listPackages()) {
+            for (SpecTypePair type : pkg.listSpecTypePairs()) {
+                if (!languages.isEmpty()) pruned += pruneLanguages(type, released);
+                if (densityDpi > 0) pruned += pruneDensities(type, released);
+            }
+        }
+        if (pruned == 0) return;
+        // A file can back several entries; it goes only if none of them survived
+        for (PackageBlock pkg : table.listPackages()) {
+            for (SpecTypePair type : pkg.listSpecTypePairs()) {
+                for (TypeBlock block : type.listTypeBlocks()) {
+                    for (Entry entry : block.listEntries(true)) {
+                        String path = filePath(entry);
+                        if (path != null) released.remove(path);
+                    }
+                }
+            }
+        }
+        for (String path : released) {
+            if (source.getEntry(path) != null) plan.dropped.add(path);
+        }
+        table.refresh();
+        plan.table = table.getBytes();
+        plan.prunedEntries = pruned;
+    }
+
+    /** Drops values in other languages wherever a language-neutral value can stand in. */
+    private int pruneLanguages(SpecTypePair type, Set<String> released) {
+        Set<Integer> neutral = new HashSet<>();
+        for (TypeBlock block : type.listTypeBlocks()) {
+            if (language(qualifiers(block)) != null) continue;
+            for (Entry entry : block.listEntries(true)) neutral.add(entry.getId());
+        }
+        int pruned = 0;
+        for (TypeBlock block : type.listTypeBlocks()) {
+            String language = language(qualifiers(block));
+            if (language == null || languages.contains(language)) continue;
+            for (Entry entry : block.listEntries(true)) {
+                if (!neutral.contains(entry.getId())) continue;
+                release(entry, released);
+                pruned++;
+            }
+        }
+        return pruned;
+    }
+
+    /**
+     * Among configs that differ only in density, keeps for each entry the value this device
+     * resolves to. Density-less values stay as the fallback should the density ever change.
+     */
+    private int pruneDensities(SpecTypePair type, Set<String> released) {
+        Map<String, List<TypeBlock>> groups = new LinkedHashMap<>();
+        for (TypeBlock block : type.listTypeBlocks()) {
+            String[] qualifiers = qualifiers(block);
+            boolean anyDensity = false;
+            StringBuilder key = new StringBuilder();
+            for (String q : qualifiers) {
+                if (ANY_DENSITY.matcher(q).matches()) anyDensity = true;
+                if (DENSITY.matcher(q).matches() || IMPLIED_VERSION.matcher(q).matches()) continue;
+                key.append('-').append(q);
+            }
+            if (anyDensity) continue;
+            List<TypeBlock> group = groups.get(key.toString());
+            if (group == null) groups.put(key.toString(), group = new ArrayList<>());
+            group.add(block);
+        }
+        int pruned = 0;
+        for (List<TypeBlock> group : groups.values()) {
+            if (group.size() < 2) continue;
+            Map<Integer, List<Entry>> byId = new HashMap<>();
+            Map<Entry, Integer> dpi = new HashMap<>();
+            for (TypeBlock block : group) {
+                int blockDpi = density(qualifiers(block));
+                for (Entry entry : block.listEntries(true)) {
+                    List<Entry> candidates = byId.get(entry.getId());
+                    if (candidates == null) byId.put(entry.getId(), candidates = new ArrayList<>());
+                    candidates.add(entry);
+                    dpi.put(entry, blockDpi);
+                }
+            }
+            for (List<Entry> candidates : byId.values()) {
+                if (candidates.size() < 2) continue;
+                Entry best = null;
+                for (Entry c : candidates) {
+                    if (best == null || isBetter(effective(dpi.get(c)), effective(dpi.get(best)))) best = c;
+                }
+                for (Entry c : candidates) {
+                    if (c == best || dpi.get(c) == 0) continue;
+                    release(c, released);
+                    pruned++;
+                }
+            }
+        }
+        return pruned;
+    }
+
+    /** ResTable_config::isBetterThan for two densities, for a device of {@code densityDpi}. */
+    private boolean isBetter(int mine, int other) {
+        if (mine == other) return false;
+        int requested = densityDpi;
+        int h = Math.max(mine, other);
+        int l = Math.min(mine, other);
+        boolean mineIsBigger = mine == h;
+        if (requested >= h) return mineIsBigger;
+        if (l >= requested) return !mineIsBigger;
+        // Between the two: scaling down from the bigger one usually looks better
+        if (((2L * l) - requested) * h > (long) requested * requested) return !mineIsBigger;
+        return mineIsBigger;
+    }
+
+    private static int effective(int dpi) {
+        return dpi == 0 ? DENSITY_MEDIUM : dpi;
+    }
+
+    private static void release(Entry entry, Set<String> released) {
+        String path = filePath(entry);
+        if (path != null) released.add(path);
+        entry.setNull(true);
+    }
+
+    private static String filePath(Entry entry) {
+        if (entry.isNull()) return null;
+        ResValue value = entry.getResValue();
+        if (value == null || value.getValueType() != ValueType.STRING) return null;
+        String s = value.getValueAsString();
+        return s != null && s.startsWith("res/") ? s : null;
+    }
+
+    private static String[] qualifiers(TypeBlock block) {
+        String q = block.getResConfig().getQualifiers();
+        if (q == null || q.isEmpty()) return new String[0];
+        List<String> parts = new ArrayList<>();
+        for (String p : q.split("-")) if (!p.isEmpty()) parts.add(p);
+        return parts.toArray(new String[0]);
+    }
+
+    /** Language of a config: its first qualifier after MCC/MNC, if that is a locale. */
+    private static String language(String[] qualifiers) {
+        for (String q : qualifiers) {
+            if (q.startsWith("mcc") || q.startsWith("mnc")) continue;
+            if (q.startsWith("b+")) {
+                String[] bcp = q.split("\\+");
+                return bcp.length > 1 ? bcp[1].toLowerCase(Locale.US) : null;
+            }
+            // "car" is the only UI mode short enough to pass for a language code
+            return q.matches("[a-z]{2,3}") && !"car".equals(q) ? q : null;
+        }
+        return null;
+    }
+
+    /** Density of a config in dpi, 0 if it names none. */
+    private static int density(String[] qualifiers) {
+        for (String q : qualifiers) {
+            switch (q) {
+                case "ldpi": return 120;
+                case "mdpi": return 160;
+                case "tvdpi": return 213;
+                case "hdpi": return 240;
+                case "xhdpi": return 320;
+                case "xxhdpi": return 480;
+                case "xxxhdpi": return 640;
+                default:
+                    if (q.endsWith("dpi") && DENSITY.matcher(q).matches()) {
+                        return Integer.parseInt(q.substring(0, q.length() - 3));
+                    }
+            }
+        }
+        return 0;
+    }
+}
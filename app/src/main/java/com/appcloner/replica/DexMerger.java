@@ -0,0 +1,56 @@
+package com.appcloner.replica;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+/**
+ * Folds the hook classes into one of the app's own DEX files, so the clone starts with no
+ * more DEX files than the original. Uses dexlib2's {@link DexPool}, which re-interns every
+ * class and reports when a section would pass the 64K index limit.
+ */
+final class DexMerger {
+    private static final String TAG = "DexMerger";
+
+    private DexMerger() {}
+
+    /**
+     * {@code target} with the classes of {@code extra} added, or {@code null} if the result
+     * would overflow a 64K section or both define the same class.
+     */
+    static byte[] merge(byte[] target, byte[] extra) throws IOException {
+        DexBackedDexFile base = new DexBackedDexFile(null, target);
+        DexBackedDexFile hook = new DexBackedDexFile(null, extra);
+
+        Set<String> types = new HashSet<>();
+        for (DexBackedClassDef c : base.getClasses()) types.add(c.getType());
+        for (DexBackedClassDef c : hook.getClasses()) {
+            if (types.contains(c.getType())) {
+                Log.w(TAG, "Not merging: both DEX files define " + c.getType());
+                return null;
+            }
+        }
+
+        // The newer format of the two, so neither side loses opcodes it relies on
+        Opcodes opcodes = base.getOpcodes().api >= hook.getOpcodes().api ? base.getOpcodes() : hook.getOpcodes();
+        DexPool pool = new DexPool(opcodes);
+        for (DexBackedClassDef c : base.getClasses()) pool.internClass(c);
+        for (DexBackedClassDef c : hook.getClasses()) pool.internClass(c);
+        if (pool.hasOverflowed()) {
+            Log.d(TAG, "Not merging: method, field or type references would pass 64K");
+            return null;
+        }
+        MemoryDataStore out = new MemoryDataStore();
+        pool.writeTo(out);
+        byte[] merged = out.getData();
+        Log.d(TAG, "Merged " + hook.getClasses().size() + " classes into a DEX of "
+                + base.getClasses().size() + " (" + target.length + " -> " + merged.length + " bytes)");
+        return merged;
+    }
+}
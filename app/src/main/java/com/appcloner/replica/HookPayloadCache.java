@@ -0,0 +1,227 @@
+package com.appcloner.replica;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * The hook payload (hook dex and the native libs it loads) deflated once into a small zip
+ * under filesDir, so clones splice its entries raw instead of copying assets and
+ * recompressing them every time. The zip is named by the SHA-256 of the assets and is
+ * rebuilt only when the installed cloner changes. Hook dexes slimmed to a module set are
+ * cached beside it and go when it does.
+ */
+final class HookPayloadCache {
+    private static final String TAG = "HookPayloadCache";
+    private static final String DIR = "hook_payloads";
+    private static final String POINTER = "current";
+
+    /** Entry holding the hook dex; it is renamed to the next free classesN.dex in the clone. */
+    static final String DEX_ENTRY = "hook.dex";
+    /** Native libs sit under this prefix and are moved into the clone's ABI directory. */
+    static final String LIB_PREFIX = "lib/";
+
+    private static final Map<String, String> ASSETS = new LinkedHashMap<>();
+    static {
+        ASSETS.put(DEX_ENTRY, "hook.dex");
+        ASSETS.put(LIB_PREFIX + "libpine.so", "lib/arm64-v8a/libpine.so");
+        ASSETS.put(LIB_PREFIX + "libsandhook.so", "lib/arm64-v8a/libsandhook.so");
+    }
+
+    private HookPayloadCache() {}
+
+    /** The payload zip for the installed cloner, built on first use. */
+    static synchronized File get(Context ctx) throws IOException {
+        File dir = new File(ctx.getFilesDir(), DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        String stamp = versionStamp(ctx);
+        File pointer = new File(dir, POINTER);
+        String[] current = readPointer(pointer);
+        if (current != null && current[0].equals(stamp)) {
+            File cached = new File(dir, current[1] + ".zip");
+            if (isUsable(cached)) return cached;
+        }
+
+        long start = System.currentTimeMillis();
+        File staging = new File(dir, "staging_" + System.nanoTime());
+        try {
+            String hash = stageAssets(ctx, staging);
+            File payloads = new File(dir, hash + ".zip");
+            if (!isUsable(payloads)) {
+                File tmp = new File(dir, hash + ".tmp");
+                writePayloads(staging, tmp);
+                if (!tmp.renameTo(payloads)) {
+                    tmp.delete();
+                    throw new IOException("Cannot publish " + payloads);
+                }
+            }
+            writePointer(pointer, stamp + " " + hash);
+            File[] stale = dir.listFiles((d, n) -> n.endsWith(".zip") && !n.startsWith(hash));
+            if (stale != null) for (File f : stale) f.delete();
+            Log.i(TAG, "Hook payloads " + hash.substring(0, 12) + " ready in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return payloads;
+        } finally {
+            File[] kids = staging.listFiles();
+            if (kids != null) for (File k : kids) k.delete();
+            staging.delete();
+        }
+    }
+
+    /**
+     * The hook dex of {@code payloads} without the modules missing from {@code modules},
+     * deflated once into a zip next to it, so clones with the same modules splice it raw.
+     */
+    static synchronized File slimmed(File payloads, Set<String> modules) throws IOException {
+        String stem = payloads.getName().substring(0, payloads.getName().length() - ".zip".length());
+        StringBuilder name = new StringBuilder(stem).append("_slim");
+        for (String m : modules) name.append('_').append(m);
+        File slim = new File(payloads.getParentFile(), name.append(".zip").toString());
+        if (slim.isFile()) {
+            try (ApkArchive archive = new ApkArchive(slim)) {
+                if (archive.getEntry(DEX_ENTRY) != null) return slim;
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding broken slim cache " + slim.getName() + ": " + e.getMessage());
+            }
+            slim.delete();
+        }
+
+        byte[] dex;
+        try (ApkArchive archive = new ApkArchive(payloads)) {
+            dex = HookSlimmer.slim(archive.readBytes(archive.getEntry(DEX_ENTRY)), modules);
+        }
+        File tmp = new File(slim.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+             ApkZipWriter writer = new ApkZipWriter(raf.getChannel(), Deflater.BEST_COMPRESSION)) {
+            raf.setLength(0);
+            writer.writeDeflated(DEX_ENTRY, dex);
+            writer.finish();
+            raf.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(slim)) {
+            tmp.delete();
+            throw new IOException("Cannot publish " + slim);
+        }
+        return slim;
+    }
+
+    /** Copies the assets out once and hashes them on the way. */
+    private static String stageAssets(Context ctx, File staging) throws IOException {
+        if (!staging.mkdirs()) throw new IOException("Cannot create " + staging);
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buf = new byte[64 * 1024];
+        for (Map.Entry<String, String> e : ASSETS.entrySet()) {
+            sha.update(e.getKey().getBytes(StandardCharsets.UTF_8));
+            sha.update((byte) 0);
+            try (InputStream in = ctx.getAssets().open(e.getValue());
+                 OutputStream out = new FileOutputStream(stagedFile(staging, e.getKey()))) {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    sha.update(buf, 0, n);
+                    out.write(buf, 0, n);
+                }
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : sha.digest()) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    private static void writePayloads(File staging, File dest) throws IOException {
+        Map<String, ParallelDeflater.Job> jobs = new LinkedHashMap<>();
+        try (RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+             ApkZipWriter writer = new ApkZipWriter(raf.getChannel(), Deflater.BEST_COMPRESSION)) {
+            raf.setLength(0);
+            for (String name : ASSETS.keySet()) {
+                jobs.put(name, writer.compress(stagedFile(staging, name)));
+            }
+            for (Map.Entry<String, ParallelDeflater.Job> e : jobs.entrySet()) {
+                writer.writeDeflated(e.getKey(), e.getValue());
+            }
+            writer.finish();
+            raf.getFD().sync();
+        } catch (IOException e) {
+            dest.delete();
+            throw e;
+        } finally {
+            for (ParallelDeflater.Job job : jobs.values()) job.cancel();
+        }
+    }
+
+    private static File stagedFile(File staging, String name) {
+        return new File(staging, name.replace('/', '_'));
+    }
+
+    private static boolean isUsable(File payloads) {
+        if (!payloads.isFile()) return false;
+        try (ApkArchive archive = new ApkArchive(payloads)) {
+            for (String name : ASSETS.keySet()) {
+                if (archive.getEntry(name) == null) return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding broken payload cache " + payloads.getName() + ": " + e.getMessage());
+            payloads.delete();
+            return false;
+        }
+    }
+
+    /** The cloner's own build, so caches of its output are dropped when it is updated. */
+    static String versionStamp(Context ctx) {
+        try {
+            PackageInfo info = ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), 0);
+            // lastUpdateTime catches reinstalls that keep the versionCode
+            return info.versionCode + ":" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return "unknown";
+        }
+    }
+
+    private static String[] readPointer(File pointer) {
+        if (!pointer.isFile()) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(pointer, "r")) {
+            byte[] data = new byte[(int) Math.min(raf.length(), 256)];
+            raf.readFully(data);
+            String[] parts = new String(data, StandardCharsets.UTF_8).trim().split(" ");
+            return parts.length == 2 ? parts : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writePointer(File pointer, String value) throws IOException {
+        File tmp = new File(pointer.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(value.getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(pointer)) {
+            tmp.delete();
+            throw new IOException("Cannot update " + pointer);
+        }
+    }
+}
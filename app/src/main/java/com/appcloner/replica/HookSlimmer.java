@@ -0,0 +1,210 @@
+package com.appcloner.replica;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.AnnotationElement;
+import org.jf.dexlib2.iface.BasicAnnotation;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.iface.instruction.DualReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.iface.reference.TypeReference;
+import org.jf.dexlib2.iface.value.AnnotationEncodedValue;
+import org.jf.dexlib2.iface.value.ArrayEncodedValue;
+import org.jf.dexlib2.iface.value.EncodedValue;
+import org.jf.dexlib2.iface.value.EnumEncodedValue;
+import org.jf.dexlib2.iface.value.TypeEncodedValue;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.json.JSONObject;
+
+/**
+ * Builds a per-clone hook DEX that leaves out the feature modules its cloner.json turns off.
+ * Hook classes are kept if they are reachable from the always-on core or from an enabled
+ * module's entry points; bundled libraries such as Pine are kept whole, since native code
+ * looks their classes up by name. The hook's module registry (HookModules) checks the same
+ * config keys before it installs a module, so a left-out module is never loaded.
+ * Only modules worth the bytes are slimmable; small ones such as the SOCKS proxy stay in every
+ * hook DEX, so a config update can switch them on without a fresh clone, and the default
+ * config needs no slimming at all.
+ */
+final class HookSlimmer {
+    private static final String TAG = "HookSlimmer";
+    private static final String HOOK_PACKAGE = "Lcom/applisto/appcloner/";
+
+    static final String MODULE_CAMERA = "camera";
+
+    // Same keys and defaults as ClonerSettings in the hook
+    private static final String FAKE_CAMERA_KEY = "fake_camera";
+
+    private static final List<String> CORE = Arrays.asList(
+            "Lcom/applisto/appcloner/DefaultProvider;",
+            "Lcom/applisto/appcloner/HookModules;",
+            "Lcom/applisto/appcloner/AbstractContentProvider;",
+            "Lcom/applisto/appcloner/ClonerSettings;",
+            "Lcom/applisto/appcloner/AppDataManager;",
+            "Lcom/applisto/appcloner/DataExportReceiver;",
+            "Lcom/applisto/appcloner/SimplifiedHooking;",
+            // Small and switched on by config updates, so never slimmed
+            "Lcom/applisto/appcloner/Socks5ProxyHook;");
+
+    private static final Map<String, List<String>> MODULE_ROOTS = new HashMap<>();
+    static {
+        MODULE_ROOTS.put(MODULE_CAMERA, Arrays.asList(
+                "Lcom/applisto/appcloner/CameraHook;",
+                "Lcom/applisto/appcloner/FakeCameraAppSupport;",
+                "Lcom/applisto/appcloner/FakeCameraActivity;",
+                "Lcom/applisto/appcloner/CameraControlReceiver;"));
+    }
+
+    private HookSlimmer() {}
+
+    /** Slimmable modules the config needs; a missing key means the module's default. */
+    static Set<String> enabledModules(JSONObject config) {
+        Set<String> modules = new TreeSet<>();
+        if (config == null || config.optBoolean(FAKE_CAMERA_KEY, true)) modules.add(MODULE_CAMERA);
+        return modules;
+    }
+
+    static boolean isComplete(Set<String> modules) {
+        return modules.containsAll(MODULE_ROOTS.keySet());
+    }
+
+    /** {@code hookDex} without the hook classes only reachable from modules not in {@code modules}. */
+    static byte[] slim(byte[] hookDex, Set<String> modules) throws IOException {
+        DexBackedDexFile dex = new DexBackedDexFile(null, hookDex);
+        Map<String, DexBackedClassDef> byType = new HashMap<>();
+        for (DexBackedClassDef c : dex.getClasses()) byType.put(c.getType(), c);
+
+        Set<String> kept = new HashSet<>();
+        // HookModules names every module's entry point behind a config check; those
+        // references must not pull in a module that is turned off
+        Set<String> blocked = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>(CORE);
+        for (Map.Entry<String, List<String>> e : MODULE_ROOTS.entrySet()) {
+            if (modules.contains(e.getKey())) {
+                queue.addAll(e.getValue());
+            } else {
+                blocked.addAll(e.getValue());
+            }
+        }
+        for (String type : byType.keySet()) {
+            if (!type.startsWith(HOOK_PACKAGE)) queue.add(type);
+        }
+        while (!queue.isEmpty()) {
+            String type = queue.poll();
+            DexBackedClassDef c = byType.get(type);
+            if (c == null || blocked.contains(type) || !kept.add(type)) continue;
+            // Library classes reference nothing of ours worth walking
+            if (type.startsWith(HOOK_PACKAGE)) collectTypes(c, queue);
+        }
+
+        DexPool pool = new DexPool(dex.getOpcodes());
+        for (DexBackedClassDef c : dex.getClasses()) {
+            if (kept.contains(c.getType())) pool.internClass(c);
+        }
+        MemoryDataStore out = new MemoryDataStore();
+        pool.writeTo(out);
+        byte[] slim = out.getData();
+        Log.d(TAG, "Kept " + kept.size() + " of " + byType.size() + " hook classes for " + modules
+                + " (" + hookDex.length + " -> " + slim.length + " bytes)");
+        return slim;
+    }
+
+    private static void collectTypes(ClassDef c, Deque<String> out) {
+        addType(c.getSuperclass(), out);
+        for (String i : c.getInterfaces()) addType(i, out);
+        addAnnotations(c.getAnnotations(), out);
+        for (Field f : c.getFields()) {
+            addType(f.getType(), out);
+            addAnnotations(f.getAnnotations(), out);
+        }
+        for (Method m : c.getMethods()) {
+            addType(m.getReturnType(), out);
+            for (CharSequence p : m.getParameterTypes()) addType(p.toString(), out);
+            addAnnotations(m.getAnnotations(), out);
+            MethodImplementation impl = m.getImplementation();
+            if (impl == null) continue;
+            for (Instruction insn : impl.getInstructions()) {
+                if (insn instanceof ReferenceInstruction) {
+                    addReference(((ReferenceInstruction) insn).getReference(), out);
+                }
+                if (insn instanceof DualReferenceInstruction) {
+                    addReference(((DualReferenceInstruction) insn).getReference2(), out);
+                }
+            }
+            for (TryBlock<? extends ExceptionHandler> block : impl.getTryBlocks()) {
+                for (ExceptionHandler h : block.getExceptionHandlers()) addType(h.getExceptionType(), out);
+            }
+        }
+    }
+
+    private static void addReference(Reference ref, Deque<String> out) {
+        if (ref instanceof TypeReference) {
+            addType(((TypeReference) ref).getType(), out);
+        } else if (ref instanceof FieldReference) {
+            addType(((FieldReference) ref).getDefiningClass(), out);
+            addType(((FieldReference) ref).getType(), out);
+        } else if (ref instanceof MethodReference) {
+            MethodReference m = (MethodReference) ref;
+            addType(m.getDefiningClass(), out);
+            addType(m.getReturnType(), out);
+            for (CharSequence p : m.getParameterTypes()) addType(p.toString(), out);
+        } else if (ref instanceof StringReference) {
+            // Class.forName("com.applisto.appcloner.Foo") and the like
+            String s = ((StringReference) ref).getString();
+            if (s.startsWith("com.applisto.appcloner.") && s.indexOf(' ') < 0) {
+                addType("L" + s.replace('.', '/') + ";", out);
+            }
+        }
+    }
+
+    private static void addAnnotations(Set<? extends Annotation> annotations, Deque<String> out) {
+        for (Annotation a : annotations) addAnnotation(a, out);
+    }
+
+    private static void addAnnotation(BasicAnnotation a, Deque<String> out) {
+        addType(a.getType(), out);
+        for (AnnotationElement e : a.getElements()) addValue(e.getValue(), out);
+    }
+
+    private static void addValue(EncodedValue v, Deque<String> out) {
+        if (v instanceof TypeEncodedValue) {
+            addType(((TypeEncodedValue) v).getValue(), out);
+        } else if (v instanceof EnumEncodedValue) {
+            addType(((EnumEncodedValue) v).getValue().getDefiningClass(), out);
+        } else if (v instanceof AnnotationEncodedValue) {
+            addAnnotation((AnnotationEncodedValue) v, out);
+        } else if (v instanceof ArrayEncodedValue) {
+            for (EncodedValue e : ((ArrayEncodedValue) v).getValue()) addValue(e, out);
+        }
+    }
+
+    private static void addType(String type, Deque<String> out) {
+        if (type == null) return;
+        int dims = 0;
+        while (dims < type.length() && type.charAt(dims) == '[') dims++;
+        if (type.startsWith(HOOK_PACKAGE, dims)) out.add(type.substring(dims));
+    }
+}
@@ -7,9 +7,11 @@ import android.content.ClipData;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
@@ -29,41 +31,32 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
-import androidx.core.content.FileProvider;
-import com.android.apksig.ApkSigner; // Ensure ApkProcessor.java is present and this import is valid
 import com.google.android.material.tabs.TabLayout;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import java.io.*;
 import java.math.BigDecimal;
-import java.nio.channels.FileChannel;
-import java.security.KeyStore;
-import java.security.PrivateKey;
 import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
+import java.text.DateFormat;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.zip.CRC32;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
     private static final String INJECTED_PROVIDER_SUFFIX = ".com.applisto.appcloner.DefaultProvider";
-    private static final Pattern SIG_PATH = Pattern.compile(
-            "^META-INF/(.+\\.(RSA|DSA|EC|SF)|MANIFEST\\.MF)$", Pattern.CASE_INSENSITIVE);
     private static final String ANDROID_MANIFEST = "AndroidManifest.xml";
-    private static final String KEYSTORE_ASSET = "debug.p12";
-    private static final String STORE_PWD      = "android";
-    private static final String KEY_PWD        = "android";
-    private static final String ALIAS          = "key0";
     private static final String IPC_PERMISSION = "com.appcloner.replica.permission.REPLICA_IPC";
     private static final String BUNDLE_DATA_SETTING_KEY = "bundle_app_data";
     private static final String CLONING_MODE_KEY = "cloning_mode";
     private static final String CLONING_MODE_REPLACE = "replace_original";
     private static final String CLONING_MODE_GENERATE = "generate_new_package";
+    private static final String VARIANT_COUNT_KEY = "variant_count";
+    // Limits of this device's clone queue; app preferences, since they belong to no clone
+    private static final String LIMITS_PREFS = "clone_limits";
+    private static final String PREF_MAX_CONCURRENT = "max_concurrent_clones";
+    private static final String PREF_RESULT_CACHE_MB = "result_cache_mb";
+    private static final int MAX_CONCURRENT_CLONES = 8;
     private static final int WRITE_EXTERNAL_STORAGE_REQUEST_CODE = 101;
     private static final Map<String, String> SPECIAL_TOKENS;
     private static final Map<String, List<String>> GROUP_CHILD_ORDER;
@@ -107,7 +100,7 @@ public class MainActivity extends AppCompatActivity {
     private File currentSettingsFile = null;
     private boolean currentSettingsIsClonedApp = false;
     private AppInfo currentSettingsApp = null;
-    private Uri inputApkUri, outputApkUri;
+    private Uri inputApkUri;
     private List<AppInfo> allApps = new ArrayList<>();
     private List<AppInfo> clonedApps = new ArrayList<>();
     private AppListAdapter allAppsAdapter, clonedAppsAdapter;
@@ -168,10 +161,10 @@ public class MainActivity extends AppCompatActivity {
     private final ActivityResultLauncher<Intent> createApk =
             registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), res -> {
                 if (res.getResultCode() == Activity.RESULT_OK && res.getData() != null) {
-                    outputApkUri = res.getData().getData();
-                    if (outputApkUri != null) {
+                    Uri out = res.getData().getData();
+                    if (out != null) {
                         statusTxt.setText("Processing...");
-                        startProcessing();
+                        startProcessing(out);
                     }
                 }
             });
@@ -256,6 +249,8 @@ public class MainActivity extends AppCompatActivity {
                 loadInstalledApplications();
             });
     private boolean receiverRegistered = false;
+    private final CloneJobScheduler cloneScheduler = CloneJobScheduler.getInstance();
+    private final CloneJobScheduler.Listener cloneJobListener = this::onCloneJobChanged;
     
     @Override
     protected void onCreate(Bundle b) {
@@ -269,10 +264,29 @@ public class MainActivity extends AppCompatActivity {
         IntentFilter filter = new IntentFilter("com.appcloner.replica.EXPORT_COMPLETED");
         registerReceiver(exportResultReceiver, filter);
         receiverRegistered = true;
+        applyCloneLimits();
+        cloneScheduler.addListener(cloneJobListener);
+        statusTxt.setOnClickListener(v -> showCloneJobs());
+        statusTxt.setOnLongClickListener(v -> {
+            showCloneLimitsDialog();
+            return true;
+        });
+        if (b == null && cloneScheduler.getActiveJobs().isEmpty()) {
+            // Fresh start with nothing running: whatever the pipeline left in cacheDir is stale.
+            // Files of jobs submitted before the cleanup gets to run are newer than this.
+            Context app = getApplicationContext();
+            long launched = System.currentTimeMillis();
+            WorkerPool.get().execute(() -> CloneResultCache.cleanOrphans(app, launched));
+        }
     }
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        cloneScheduler.removeListener(cloneJobListener);
+        if (isFinishing()) {
+            // Nothing would be left to install the results
+            cloneScheduler.cancelAll();
+        }
         if (receiverRegistered) {
             try {
                 unregisterReceiver(exportResultReceiver);
@@ -1384,25 +1398,12 @@ public class MainActivity extends AppCompatActivity {
                     clearSelection();
                     return;
                 }
-                File cachedApkDir = new File(getCacheDir(), "apk_cache");
-                cachedApkDir.mkdirs();
-                File cachedApkFile = new File(cachedApkDir, app.packageName + "_source.apk");
-                try (FileInputStream fis = new FileInputStream(sourceApkFile);
-                     FileOutputStream fos = new FileOutputStream(cachedApkFile);
-                     FileChannel inChannel = fis.getChannel();
-                     FileChannel outChannel = fos.getChannel()) {
-                    inChannel.transferTo(0, inChannel.size(), outChannel);
-                    inputApkUri = Uri.fromFile(cachedApkFile);
-                    selectedAppInfo = new SelectedAppInfo(app.packageName, app.appName, cachedApkFile);
-                    selectedTxt.setText("Selected App: " + app.appName);
-                    statusTxt.setText("App selected. Ready to process.");
-                    Toast.makeText(MainActivity.this, "Selected: " + app.appName, Toast.LENGTH_SHORT).show();
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to copy APK to cache", e);
-                    Toast.makeText(MainActivity.this, "Error: Failed to access app APK.", Toast.LENGTH_SHORT).show();
-                    clearSelection();
-                    cachedApkFile.delete();
-                }
+                // Cloned straight from the installed files; nothing is copied out up front
+                inputApkUri = Uri.fromFile(sourceApkFile);
+                selectedAppInfo = new SelectedAppInfo(app.packageName, app.appName, ApkBundle.installedApks(appInfo));
+                selectedTxt.setText("Selected App: " + app.appName);
+                statusTxt.setText("App selected. Ready to process.");
+                Toast.makeText(MainActivity.this, "Selected: " + app.appName, Toast.LENGTH_SHORT).show();
             } catch (PackageManager.NameNotFoundException e) {
                 Log.e(TAG, "App not found: " + app.packageName, e);
                 Toast.makeText(MainActivity.this, "Error: App not found", Toast.LENGTH_SHORT).show();
@@ -1427,15 +1428,13 @@ public class MainActivity extends AppCompatActivity {
                     if (sourceApkFile.exists()) {
                         tempClonerJsonForEditor = new File(getCacheDir(), app.packageName + "_temp_cloner.json");
                         boolean jsonExtracted = false;
-                        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(sourceApkFile))) {
-                            ZipEntry entry;
-                            while ((entry = zis.getNextEntry()) != null) {
-                                if ("assets/cloner.json".equals(entry.getName())) {
-                                    try (FileOutputStream fos = new FileOutputStream(tempClonerJsonForEditor)) {
-                                        copyStream(zis, fos);
-                                        jsonExtracted = true;
-                                    }
-                                    break;
+                        try (ApkArchive archive = new ApkArchive(sourceApkFile)) {
+                            ApkArchive.Entry entry = archive.getEntry("assets/cloner.json");
+                            if (entry != null) {
+                                try (InputStream in = archive.openStream(entry);
+                                     FileOutputStream fos = new FileOutputStream(tempClonerJsonForEditor)) {
+                                    copyStream(in, fos);
+                                    jsonExtracted = true;
                                 }
                             }
                         } catch (IOException e) {
@@ -1485,6 +1484,10 @@ public class MainActivity extends AppCompatActivity {
             if (!json.has(CLONING_MODE_KEY)) {
                 json.put(CLONING_MODE_KEY, CLONING_MODE_REPLACE);
             }
+            if (!isClonedApp && !json.has(VARIANT_COUNT_KEY)) {
+                // Settings saved before variants existed
+                json.put(VARIANT_COUNT_KEY, 1);
+            }
 
             ListView settingsListView = new ListView(this);
             final List<Setting> settingsList = buildSettingsList(json);
@@ -1635,9 +1638,12 @@ public class MainActivity extends AppCompatActivity {
     }
     private void pickInput() {
         try {
+            // APKS/XAPK bundles have no registered mime type of their own
             Intent i = new Intent(Intent.ACTION_OPEN_DOCUMENT)
                     .addCategory(Intent.CATEGORY_OPENABLE)
-                    .setType("application/vnd.android.package-archive");
+                    .setType("*/*")
+                    .putExtra(Intent.EXTRA_MIME_TYPES, new String[] {
+                            "application/vnd.android.package-archive", "application/zip", "application/octet-stream"});
             pickApk.launch(i);
         } catch (Exception e) {
             Log.e(TAG, "Error launching APK picker", e);
@@ -1649,7 +1655,7 @@ public class MainActivity extends AppCompatActivity {
             Intent i = new Intent(Intent.ACTION_CREATE_DOCUMENT)
                     .addCategory(Intent.CATEGORY_OPENABLE)
                     .setType("application/vnd.android.package-archive")
-                    .putExtra(Intent.EXTRA_TITLE, "patched.apk");
+                    .putExtra(Intent.EXTRA_TITLE, isSplitSelection() ? "patched.apks" : "patched.apk");
             createApk.launch(i);
         } catch (Exception e) {
             Log.e(TAG, "Error launching output file picker", e);
@@ -1671,7 +1677,28 @@ public class MainActivity extends AppCompatActivity {
             if (!persistCurrentSettings()) {
                 return;
             }
-            pickOutput();
+            if (clonerJsonFile.exists() && ApkProcessor.variantCount(clonerJsonFile) > 1) {
+                // Several packages cannot go into one file; each variant is installed on its own
+                statusTxt.setText("Processing...");
+                startProcessing(null);
+                return;
+            }
+            if (bundledDataFileForCloning != null) {
+                // Streaming would hold the compressed app data in memory until the clone is signed
+                pickOutput();
+                return;
+            }
+            new AlertDialog.Builder(this)
+                    .setTitle("Clone")
+                    .setItems(new String[] {"Install directly", "Save APK file\u2026"}, (d, which) -> {
+                        if (which == 0) {
+                            statusTxt.setText("Processing...");
+                            startProcessing(null);
+                        } else {
+                            pickOutput();
+                        }
+                    })
+                    .show();
         }
     }
     private boolean persistCurrentSettings() {
@@ -1703,83 +1730,151 @@ public class MainActivity extends AppCompatActivity {
         }
     }
     private void clearSelection() {
-        if (selectedAppInfo != null && selectedAppInfo.cachedApkFile != null && selectedAppInfo.cachedApkFile.exists()) {
-            selectedAppInfo.cachedApkFile.delete();
-        }
         inputApkUri = null;
         selectedAppInfo = null;
         selectedTxt.setText("Select an APK");
         processApkBtn.setEnabled(false);
         hideSettingsEditor();
     }
-    private void startProcessing() {
-        if (inputApkUri == null || outputApkUri == null) {
-            Toast.makeText(this, "Pick input & output first", Toast.LENGTH_LONG).show();
+    /** Clones the selection into {@code out}, or straight into an install session if it is null. */
+    private void startProcessing(Uri out) {
+        if (inputApkUri == null) {
+            Toast.makeText(this, "Pick input first", Toast.LENGTH_LONG).show();
             return;
         }
         if (!isValidApk(inputApkUri)) {
             statusTxt.setText("Error: Invalid APK file");
             return;
         }
+        // Each job gets its own copy of the config, so the UI is free for the next one right away.
+        // The hook dex and libs come pre-compressed from the payload cache.
+        File jobDir = new File(getCacheDir(), "clone_job_" + System.nanoTime());
         try {
-            File hookDex    = new File(getCacheDir(), "hook.dex");
-            File libWorkDir = new File(getCacheDir(), "hook_libs");
-            libWorkDir.mkdirs();
-            copyAsset("hook.dex", hookDex);
+            File jobClonerJson = new File(jobDir, "cloner.json");
+            jobDir.mkdirs();
             if (!clonerJsonFile.exists()) {
                 copyAsset("cloner.json", clonerJsonFile);
             }
-            copyAsset("lib/arm64-v8a/libpine.so",     new File(libWorkDir, "libpine.so"));
-            copyAsset("lib/arm64-v8a/libsandhook.so", new File(libWorkDir, "libsandhook.so"));
-            new Thread(() -> {
+            copyFile(clonerJsonFile, jobClonerJson);
+
+            final Uri in = inputApkUri;
+            final File bundledData = bundledDataFileForCloning;
+            final List<File> installedApks = selectedAppInfo != null ? selectedAppInfo.sourceApks : null;
+            final String label = selectedAppInfo != null ? selectedAppInfo.appName : in.getLastPathSegment();
+            final boolean splitInput = installedApks != null ? installedApks.size() > 1 : isApkBundle(in);
+            final int variants = out == null && !splitInput ? ApkProcessor.variantCount(jobClonerJson) : 1;
+            bundledDataFileForCloning = null;
+            bundledDataDisplayName = null;
+            refreshBundleDataUi();
+            selectedAppInfo = null;
+            clearSelection();
+
+            cloneScheduler.submit("Clone " + label, progress -> {
+                long jobTemp = sizeRec(jobDir) + (bundledData != null ? bundledData.length() : 0);
+                progress.tempAllocated(jobTemp);
                 try {
-                    // Ensure ApkProcessor.java is present in the correct package location
-                    new ApkProcessor(MainActivity.this).injectHook(
-                            inputApkUri, outputApkUri, hookDex, clonerJsonFile, libWorkDir, bundledDataFileForCloning);
-                    runOnUiThread(() -> {
-                        statusTxt.setText("Done");
-                        Toast.makeText(this, "APK patched successfully!", Toast.LENGTH_LONG).show();
-                        boolean hadBundledData = bundledDataFileForCloning != null || bundledDataDisplayName != null;
-                        if (bundledDataFileForCloning != null && bundledDataFileForCloning.exists()) {
-                            bundledDataFileForCloning.delete();
+                    File hookPayloads = HookPayloadCache.get(MainActivity.this);
+                    if (variants > 1) {
+                        // One parse of the source for all variants; each is a package of its own
+                        // and goes into an install session of its own
+                        List<Uri> outs = new ArrayList<>(variants);
+                        List<File> apks = new ArrayList<>(variants);
+                        for (int i = 1; i <= variants; i++) {
+                            File apk = new File(jobDir, "variant_" + i + ".apk");
+                            apks.add(apk);
+                            outs.add(Uri.fromFile(apk));
                         }
-                        if (hadBundledData) {
-                            bundledDataFileForCloning = null;
-                            bundledDataDisplayName = null;
-                            refreshBundleDataUi();
+                        new ApkProcessor(MainActivity.this).setProgress(progress).injectHookVariants(
+                                in, outs, hookPayloads, Collections.nCopies(variants, jobClonerJson), bundledData, true);
+                        progress.setStage(CloneProgress.STAGE_COMMITTING);
+                        for (File apk : apks) {
+                            progress.throwIfCancelled();
+                            ApkInstaller.install(MainActivity.this, Collections.singletonList(apk));
                         }
+                        long totalMs = progress.getTotalMillis();
+                        runOnUiThread(() -> {
+                            statusTxt.setText(String.format(Locale.US, "Installing: %s (%d variants) after %.1f s (tap for details)",
+                                    label, variants, totalMs / 1000.0));
+                            loadInstalledApplications();
+                        });
+                        return;
+                    }
+                    if (out == null) {
+                        // Signed straight into the install session; no APK is written to storage
+                        int count;
+                        try (ApkBundle bundle = installedApks != null
+                                ? ApkBundle.open(installedApks)
+                                : ApkBundle.open(MainActivity.this, in, progress);
+                             ApkInstaller.StreamSession session = ApkInstaller.open(MainActivity.this, -1)) {
+                            new ApkProcessor(MainActivity.this).setProgress(progress).injectHook(
+                                    bundle, session, hookPayloads, jobClonerJson, bundledData);
+                            progress.setStage(CloneProgress.STAGE_COMMITTING);
+                            session.commit();
+                            count = bundle.getSplits().size();
+                        }
+                        long totalMs = progress.getTotalMillis();
+                        runOnUiThread(() -> {
+                            statusTxt.setText(String.format(Locale.US, "Installing: %s (%d APK%s) after %.1f s (tap for details)",
+                                    label, count, count == 1 ? "" : "s", totalMs / 1000.0));
+                            loadInstalledApplications();
+                        });
+                        return;
+                    }
+                    if (splitInput) {
+                        // Base and splits are signed side by side, exported as one .apks and installed together
+                        List<File> apks;
+                        try (ApkBundle bundle = installedApks != null
+                                ? ApkBundle.open(installedApks)
+                                : ApkBundle.open(MainActivity.this, in, progress)) {
+                            apks = new ApkProcessor(MainActivity.this).setProgress(progress).injectHook(
+                                    bundle, new File(jobDir, "out"), hookPayloads, jobClonerJson, bundledData);
+                        }
+                        progress.setStage(CloneProgress.STAGE_COMMITTING);
+                        ApkBundle.writeSet(MainActivity.this, apks, out);
+                        ApkInstaller.install(MainActivity.this, apks);
+                        long totalMs = progress.getTotalMillis();
+                        runOnUiThread(() -> {
+                            statusTxt.setText(String.format(Locale.US, "Done: %s (%d APKs) in %.1f s (tap for details)",
+                                    label, apks.size(), totalMs / 1000.0));
+                            loadInstalledApplications();
+                        });
+                        return;
+                    }
+                    new ApkProcessor(MainActivity.this).setProgress(progress).injectHook(
+                            in, out, hookPayloads, jobClonerJson, bundledData);
+                    long totalMs = progress.getTotalMillis();
+                    runOnUiThread(() -> {
+                        statusTxt.setText(String.format(Locale.US, "Done: %s in %.1f s (tap for details)",
+                                label, totalMs / 1000.0));
+                        Toast.makeText(this, "APK patched successfully!", Toast.LENGTH_LONG).show();
                         boolean installerLaunched = launchInstallerForUri(
-                                outputApkUri,
+                                out,
                                 "Launching installer...",
                                 "Installer launched. Confirm installation to finish."
                         );
                         if (installerLaunched) {
                             loadInstalledApplications();
-                            clearSelection();
-                            outputApkUri = null;
                         }
                     });
                 } catch (Exception e) {
                     Log.e(TAG, "Patch error", e);
+                    boolean cancelled = progress.isCancelled();
                     runOnUiThread(() -> {
-                        statusTxt.setText("Error: " + e.getMessage());
-                        Toast.makeText(this, "Failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
-                        boolean hadBundledData = bundledDataFileForCloning != null || bundledDataDisplayName != null;
-                        if (bundledDataFileForCloning != null && bundledDataFileForCloning.exists()) {
-                            bundledDataFileForCloning.delete();
-                        }
-                        if (hadBundledData) {
-                            bundledDataFileForCloning = null;
-                            bundledDataDisplayName = null;
-                            refreshBundleDataUi();
+                        statusTxt.setText(cancelled ? "Cancelled: " + label : "Error: " + e.getMessage());
+                        if (!cancelled) {
+                            Toast.makeText(this, "Failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
                         }
-                        clearSelection();
-                        outputApkUri = null;
                     });
+                    throw e;
+                } finally {
+                    deleteRec(jobDir);
+                    if (bundledData != null) bundledData.delete();
+                    progress.tempReleased(jobTemp);
                 }
-            }).start();
+            });
         } catch (IOException e) {
             Log.e(TAG, "Asset copy error", e);
+            deleteRec(jobDir);
             statusTxt.setText("Asset error: " + e.getMessage());
             boolean hadBundledData = bundledDataFileForCloning != null || bundledDataDisplayName != null;
             if (bundledDataFileForCloning != null && bundledDataFileForCloning.exists()) {
@@ -1791,9 +1886,93 @@ public class MainActivity extends AppCompatActivity {
                 refreshBundleDataUi();
             }
             clearSelection();
-            outputApkUri = null;
         }
     }
+    private void showCloneJobs() {
+        List<CloneJobScheduler.Job> jobs = cloneScheduler.getJobs();
+        if (jobs.isEmpty()) {
+            return;
+        }
+        // Newest first; finished jobs keep their per-stage breakdown
+        StringBuilder sb = new StringBuilder();
+        for (int i = jobs.size() - 1; i >= 0; i--) {
+            CloneJobScheduler.Job job = jobs.get(i);
+            if (job.isActive()) {
+                sb.append(describeJob(job)).append('\n');
+            } else {
+                sb.append(job.label).append(": ").append(job.getState()).append('\n')
+                        .append(job.progress.summary()).append("\n\n");
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Clone jobs")
+                .setMessage(sb.toString().trim())
+                .setPositiveButton("Close", null)
+                .setNegativeButton("Cancel all", (d, w) -> cloneScheduler.cancelAll())
+                .setNeutralButton("Limits\u2026", (d, w) -> showCloneLimitsDialog())
+                .show();
+    }
+    /** Applies the saved clone limits to the scheduler and the result cache. */
+    private void applyCloneLimits() {
+        SharedPreferences prefs = getSharedPreferences(LIMITS_PREFS, MODE_PRIVATE);
+        int maxConcurrent = prefs.getInt(PREF_MAX_CONCURRENT, CloneJobScheduler.DEFAULT_MAX_CONCURRENT);
+        cloneScheduler.setMaxConcurrent(Math.max(1, Math.min(maxConcurrent, MAX_CONCURRENT_CLONES)));
+        long cacheMb = prefs.getLong(PREF_RESULT_CACHE_MB, CloneResultCache.DEFAULT_MAX_BYTES / (1024 * 1024));
+        CloneResultCache.setMaxBytes(Math.max(0, cacheMb) * 1024 * 1024);
+    }
+    /** Edits how many clone jobs run at once and how much space finished clones may keep. */
+    private void showCloneLimitsDialog() {
+        SharedPreferences prefs = getSharedPreferences(LIMITS_PREFS, MODE_PRIVATE);
+        final EditText concurrent = new EditText(this);
+        concurrent.setInputType(InputType.TYPE_CLASS_NUMBER);
+        concurrent.setHint("Clones at once (1-" + MAX_CONCURRENT_CLONES + ")");
+        concurrent.setText(String.valueOf(prefs.getInt(PREF_MAX_CONCURRENT, CloneJobScheduler.DEFAULT_MAX_CONCURRENT)));
+        final EditText cacheMb = new EditText(this);
+        cacheMb.setInputType(InputType.TYPE_CLASS_NUMBER);
+        cacheMb.setHint("Result cache size in MB (0 turns it off)");
+        cacheMb.setText(String.valueOf(prefs.getLong(PREF_RESULT_CACHE_MB, CloneResultCache.DEFAULT_MAX_BYTES / (1024 * 1024))));
+        LinearLayout container = new LinearLayout(this);
+        container.setOrientation(LinearLayout.VERTICAL);
+        container.setPadding(48, 16, 48, 0);
+        container.addView(concurrent);
+        container.addView(cacheMb);
+        new AlertDialog.Builder(this)
+                .setTitle("Clone limits")
+                .setView(container)
+                .setPositiveButton("OK", (d, w) -> {
+                    try {
+                        int n = Integer.parseInt(concurrent.getText().toString().trim());
+                        long mb = Long.parseLong(cacheMb.getText().toString().trim());
+                        if (n < 1 || n > MAX_CONCURRENT_CLONES || mb < 0) throw new NumberFormatException();
+                        prefs.edit().putInt(PREF_MAX_CONCURRENT, n).putLong(PREF_RESULT_CACHE_MB, mb).apply();
+                        applyCloneLimits();
+                    } catch (NumberFormatException e) {
+                        Toast.makeText(this, "Invalid value. Please check your input.", Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+    private void onCloneJobChanged(CloneJobScheduler.Job job) {
+        if (!job.isActive()) {
+            return;
+        }
+        List<CloneJobScheduler.Job> active = cloneScheduler.getActiveJobs();
+        String text = describeJob(job);
+        if (active.size() > 1) {
+            text += " (+" + (active.size() - 1) + " more, tap for details)";
+        }
+        statusTxt.setText(text);
+    }
+    private static String describeJob(CloneJobScheduler.Job job) {
+        CloneProgress p = job.progress;
+        if (job.getState() == CloneJobScheduler.State.QUEUED) {
+            return job.label + ": queued";
+        }
+        return String.format(Locale.US, "%s: %s, %.1f MB read, %.1f MB written, %d entries, %.1f s",
+                job.label, p.getStage(), p.getBytesRead() / (1024.0 * 1024.0),
+                p.getBytesWritten() / (1024.0 * 1024.0), p.getEntries(), p.getTotalMillis() / 1000.0);
+    }
     private boolean launchInstallerForUri(Uri apkUri, String successToast, String successStatus) {
         if (apkUri == null) {
             Log.e(TAG, "launchInstallerForUri: APK URI is null");
@@ -1855,13 +2034,39 @@ public class MainActivity extends AppCompatActivity {
     private boolean isValidApk(Uri apkUri) {
         try {
             String mimeType = getContentResolver().getType(apkUri);
-            return "application/vnd.android.package-archive".equals(mimeType) ||
-                   (apkUri.getLastPathSegment() != null && apkUri.getLastPathSegment().endsWith(".apk"));
+            String name = apkUri.getLastPathSegment() != null ? apkUri.getLastPathSegment().toLowerCase(Locale.US) : "";
+            boolean looksLikeApk = "application/vnd.android.package-archive".equals(mimeType) ||
+                   name.endsWith(".apk") || name.endsWith(".apks") || name.endsWith(".xapk");
+            if (!looksLikeApk) {
+                return false;
+            }
+            // Only the central directory is read, so this stays cheap even for huge APKs.
+            try (ApkArchive archive = ApkArchive.open(this, apkUri)) {
+                return archive.getEntry(ANDROID_MANIFEST) != null || containsApks(archive);
+            }
         } catch (Exception e) {
             Log.w(TAG, "Error validating APK URI", e);
             return false;
         }
     }
+    private boolean isSplitSelection() {
+        if (selectedAppInfo != null) return selectedAppInfo.sourceApks.size() > 1;
+        return inputApkUri != null && isApkBundle(inputApkUri);
+    }
+    /** True for APKS/XAPK containers, which hold a base APK and its splits instead of being one. */
+    private boolean isApkBundle(Uri uri) {
+        try (ApkArchive archive = ApkArchive.open(this, uri)) {
+            return archive.getEntry(ANDROID_MANIFEST) == null && containsApks(archive);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    private static boolean containsApks(ApkArchive archive) {
+        for (ApkArchive.Entry e : archive.getEntries()) {
+            if (e.getName().toLowerCase(Locale.US).endsWith(".apk")) return true;
+        }
+        return false;
+    }
     private void copyAsset(String assetPath, File dst) throws IOException {
         if (assetPath == null || assetPath.isEmpty()) {
             throw new IllegalArgumentException("Asset path cannot be null or empty");
@@ -1877,33 +2082,6 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private static void copyFile(File source, File dest) throws IOException {
-        if (source == null || dest == null) {
-            throw new IllegalArgumentException("Source and destination files cannot be null");
-        }
-        if (!source.exists() || !source.isFile()) {
-            throw new IOException("Source file does not exist: " + source);
-        }
-        File parent = dest.getParentFile();
-        if (parent != null && !parent.exists() && !parent.mkdirs()) {
-            throw new IOException("Failed to create directory: " + parent);
-        }
-        try (InputStream in = new FileInputStream(source);
-             OutputStream out = new FileOutputStream(dest)) {
-            copyStream(in, out);
-        }
-    }
-
-    private static byte[] readAllBytes(File file) throws IOException {
-        if (file == null || !file.exists() || !file.isFile()) {
-            throw new IOException("File does not exist: " + file);
-        }
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-             InputStream in = new FileInputStream(file)) {
-            copyStream(in, baos);
-            return baos.toByteArray();
-        }
-    }
     private String readString(File file) throws IOException {
         if (file == null || !file.exists()) {
             throw new IOException("File does not exist: " + file);
@@ -1948,58 +2126,15 @@ public class MainActivity extends AppCompatActivity {
     }
     private void injectUpdatedJsonAndInstall(File updatedClonerJson, File sourceApkFile, AppInfo clonedApp) {
         statusTxt.setText("Updating & Installing...");
-        new Thread(() -> {
-            File tempRoot = new File(getCacheDir(), "update_" + System.currentTimeMillis());
-            try {
-                if (!tempRoot.mkdirs()) throw new IOException("Failed to create temp directory: " + tempRoot);
-                String basePath = tempRoot.getCanonicalPath() + File.separator;
-                boolean manifestFound = false;
-                try (ZipInputStream zis = new ZipInputStream(new FileInputStream(sourceApkFile))) {
-                    ZipEntry ze;
-                    while ((ze = zis.getNextEntry()) != null) {
-                        String name = ze.getName();
-                        if (name == null || name.isEmpty()) continue;
-                        if (SIG_PATH.matcher(name).matches()) continue;
-                        if ("assets/cloner.json".equals(name)) continue;
-                        if (ANDROID_MANIFEST.equals(name)) {
-                            manifestFound = true;
-                        }
-                        File outFile = safeResolve(tempRoot, basePath, name);
-                        if (ze.isDirectory()) {
-                            if (!outFile.exists() && !outFile.mkdirs()) {
-                                throw new IOException("Failed to mkdirs: " + outFile);
-                            }
-                            continue;
-                        }
-                        File parent = outFile.getParentFile();
-                        if (parent != null && !parent.exists() && !parent.mkdirs()) {
-                            throw new IOException("Failed to create parent: " + parent);
-                        }
-                        try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                            copyStream(zis, fos);
-                        }
-                    }
-                }
-                if (!manifestFound) {
-                    throw new IOException("AndroidManifest.xml not found in source APK");
-                }
-                File assetsDir = new File(tempRoot, "assets");
-                if (!assetsDir.exists() && !assetsDir.mkdirs()) {
-                    throw new IOException("Failed to create assets dir");
-                }
-                copyFile(updatedClonerJson, new File(assetsDir, "cloner.json"));
-                File unsignedApk = new File(getCacheDir(), "unsigned_updated_" + System.nanoTime() + ".apk");
-                File manifestFile = new File(tempRoot, ANDROID_MANIFEST);
-                byte[] manifestBytes = readAllBytes(manifestFile);
-                zipDir(tempRoot, unsignedApk, manifestBytes);
-                File signedApk = new File(getCacheDir(), "signed_updated_" + System.nanoTime() + ".apk");
-                try {
-                    signUpdatedApk(unsignedApk, signedApk);
-                } finally {
-                    unsignedApk.delete();
-                    deleteRec(tempRoot);
-                }
-                runOnUiThread(() -> installApk(signedApk, clonedApp));
+        cloneScheduler.submit("Update " + clonedApp.appName, progress -> {
+            // Only cloner.json changes; every other entry is copied raw and the base re-signed
+            // straight into a session that keeps the installed splits
+            try (ApkInstaller.StreamSession session = ApkInstaller.openUpdate(MainActivity.this, clonedApp.packageName)) {
+                new ApkProcessor(MainActivity.this).setProgress(progress)
+                        .updateClonerConfig(sourceApkFile, updatedClonerJson, session, "base.apk");
+                progress.setStage(CloneProgress.STAGE_COMMITTING);
+                session.commit();
+                runOnUiThread(() -> statusTxt.setText("Installer launched for " + clonedApp.appName));
             } catch (Exception e) {
                 Log.e(TAG, "Error updating/cloning app: " + clonedApp.packageName, e);
                 runOnUiThread(() -> {
@@ -2010,69 +2145,28 @@ public class MainActivity extends AppCompatActivity {
                     }
                     hideSettingsEditor();
                 });
-                deleteRec(tempRoot);
+                throw e;
             }
-        }).start();
-    }
-    private void signUpdatedApk(File unsignedApk, File signedApk) throws Exception {
-        ApkSigner.SignerConfig signer = loadSignerConfigForUpdate();
-        ApkSigner apkSigner = new ApkSigner.Builder(Collections.singletonList(signer))
-                .setInputApk(unsignedApk)
-                .setOutputApk(signedApk)
-                .setV1SigningEnabled(true)
-                .setV2SigningEnabled(true)
-                .setV3SigningEnabled(false)  // Disabled for better compatibility
-                .build();
-        apkSigner.sign();
-        try {
-            Class<?> builderClass = Class.forName("com.android.apksig.ApkVerifier$Builder");
-            Object builderInstance = builderClass.getConstructor(File.class).newInstance(signedApk);
-            Object apkVerifierInstance = builderClass.getMethod("build").invoke(builderInstance);
-            Object vRes = apkVerifierInstance.getClass().getMethod("verify").invoke(apkVerifierInstance);
-            Boolean isVerified = (Boolean) vRes.getClass().getMethod("isVerified").invoke(vRes);
-            if (isVerified != null && !isVerified) {
-                Log.w(TAG, "Updated APK verification result: NOT VERIFIED (continuing)");
-            }
-        } catch (Throwable t) {
-            Log.w(TAG, "Verification skipped due to error", t);
-        }
-    }
-    private void installApk(File apkToInstall, AppInfo clonedApp) {
-        Log.d(TAG, "Preparing to install updated APK: " + apkToInstall.getName());
-        try {
-            String authority = getPackageName() + ".fileprovider";
-            Uri apkUri = FileProvider.getUriForFile(this, authority, apkToInstall);
-            boolean launched = launchInstallerForUri(
-                    apkUri,
-                    "Launching installer for updated " + clonedApp.appName,
-                    "Installer launched for " + clonedApp.appName
-            );
-            if (!launched) {
-                apkToInstall.delete();
-            }
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Invalid FileProvider configuration for APK installation", e);
-            Toast.makeText(this, "Installer error: invalid output location.", Toast.LENGTH_LONG).show();
-            statusTxt.setText("Installer Error: Invalid output");
-            apkToInstall.delete();
-        }
-    }
-    private ApkSigner.SignerConfig loadSignerConfigForUpdate() throws Exception {
-        try (InputStream ksStream = getAssets().open(KEYSTORE_ASSET)) {
-            KeyStore ks = KeyStore.getInstance("PKCS12");
-            ks.load(ksStream, STORE_PWD.toCharArray());
-            PrivateKey key = (PrivateKey) ks.getKey(ALIAS, KEY_PWD.toCharArray());
-            if (key == null) throw new IllegalStateException("Private key is null for alias: " + ALIAS);
-            X509Certificate cert = (X509Certificate) ks.getCertificate(ALIAS);
-            if (cert == null) throw new IllegalStateException("Certificate is null for alias: " + ALIAS);
-            return new ApkSigner.SignerConfig.Builder(ALIAS, key, Collections.singletonList(cert)).build();
-        }
+        });
     }
     private static void copyStream(InputStream in, OutputStream out) throws IOException {
         byte[] buf = new byte[8192];
         int n;
         while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
     }
+    private static void copyFile(File source, File dest) throws IOException {
+        try (InputStream in = new FileInputStream(source);
+             OutputStream out = new FileOutputStream(dest)) {
+            copyStream(in, out);
+        }
+    }
+    private static long sizeRec(File f) {
+        if (!f.isDirectory()) return f.length();
+        long total = 0;
+        File[] kids = f.listFiles();
+        if (kids != null) for (File k : kids) total += sizeRec(k);
+        return total;
+    }
     private static void deleteRec(File f) {
         if (f.isDirectory()) {
             File[] kids = f.listFiles();
@@ -2080,75 +2174,6 @@ public class MainActivity extends AppCompatActivity {
         }
         f.delete();
     }
-    private void zipDir(File root, File outFile, byte[] manifestBytes) throws IOException {
-        try (OutputStream os = new FileOutputStream(outFile);
-             ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(os))) {
-            zos.setLevel(9);
-            writeZip(root, zos, manifestBytes);
-        }
-    }
-    private void writeZip(File root, ZipOutputStream zos, byte[] manifestBytes) throws IOException {
-        ZipEntry manifestEntry = createZipEntry(ANDROID_MANIFEST, manifestBytes);
-        zos.putNextEntry(manifestEntry);
-        zos.write(manifestBytes);
-        zos.closeEntry();
-        addRec(root, root.getAbsolutePath(), zos);
-    }
-    private void addRec(File node, String base, ZipOutputStream zos) throws IOException {
-        if (node.isDirectory()) {
-            File[] kids = node.listFiles();
-            if (kids != null) for (File k : kids) addRec(k, base, zos);
-            return;
-        }
-        String rel = node.getAbsolutePath().substring(base.length() + 1).replace(File.separatorChar, '/');
-        if (ANDROID_MANIFEST.equals(rel)) return;
-        ZipEntry entry = createZipEntry(rel, node);
-        zos.putNextEntry(entry);
-        try (FileInputStream fis = new FileInputStream(node)) {
-            copyStream(fis, zos);
-        }
-        zos.closeEntry();
-    }
-    private ZipEntry createZipEntry(String name, byte[] data) {
-        ZipEntry e = new ZipEntry(name);
-        e.setTime(0L);
-        e.setMethod(ZipEntry.STORED);
-        e.setSize(data.length);
-        CRC32 crc = new CRC32();
-        crc.update(data);
-        e.setCrc(crc.getValue());
-        return e;
-    }
-    private ZipEntry createZipEntry(String name, File file) throws IOException {
-        ZipEntry e = new ZipEntry(name);
-        e.setTime(0L);
-        String lower = name.toLowerCase(Locale.US);
-        boolean store = lower.endsWith(".so") || lower.endsWith(".arsc") || lower.endsWith(".dex");
-        if (store) {
-            e.setMethod(ZipEntry.STORED);
-            e.setSize(file.length());
-            CRC32 crc = new CRC32();
-            try (InputStream in = new FileInputStream(file)) {
-                byte[] buf = new byte[8192];
-                int r;
-                while ((r = in.read(buf)) != -1) {
-                    crc.update(buf, 0, r);
-                }
-            }
-            e.setCrc(crc.getValue());
-        } else {
-            e.setMethod(ZipEntry.DEFLATED);
-        }
-        return e;
-    }
-    private static File safeResolve(File root, String basePath, String entryName) throws IOException {
-        File out = new File(root, entryName);
-        String outPath = out.getCanonicalPath();
-        if (!outPath.startsWith(basePath)) {
-            throw new IOException("Blocked zip path traversal: " + entryName);
-        }
-        return out;
-    }
     @Override
     public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
@@ -2185,6 +2210,114 @@ public class MainActivity extends AppCompatActivity {
             Toast.makeText(this, "Failed to request export from " + targetPackageName + ". Is the app correctly cloned?", Toast.LENGTH_LONG).show();
         }
     }
+    private interface ReportFormatter {
+        String format(JSONArray data) throws JSONException;
+    }
+
+    /** Asks the clone's injected provider for {@code method} and shows the JSON it returns under {@code key}. */
+    private void showCloneReport(AppInfo app, String method, String key, String title, ReportFormatter formatter) {
+        new Thread(() -> {
+            String text;
+            try {
+                Bundle res = getContentResolver().call(cloneProviderUri(app.packageName), method, null, null);
+                String data = res != null ? res.getString(key) : null;
+                text = data != null
+                        ? formatter.format(new JSONArray(data))
+                        : "This clone does not support " + title.toLowerCase(Locale.US) + ". Clone the app again to enable it.";
+            } catch (Exception e) {
+                Log.e(TAG, "Error calling " + method + " on " + app.packageName, e);
+                text = "Failed to query " + app.packageName + ": " + e.getMessage();
+            }
+            final String message = text;
+            runOnUiThread(() -> new AlertDialog.Builder(this)
+                    .setTitle(title + ": " + app.appName)
+                    .setMessage(message)
+                    .setPositiveButton("OK", null)
+                    .show());
+        }).start();
+    }
+
+    private Uri cloneProviderUri(String packageName) throws PackageManager.NameNotFoundException {
+        PackageInfo info = getPackageManager().getPackageInfo(packageName, PackageManager.GET_PROVIDERS);
+        if (info.providers != null) {
+            for (ProviderInfo p : info.providers) {
+                if ("com.applisto.appcloner.DefaultProvider".equals(p.name) && p.authority != null) {
+                    return Uri.parse("content://" + p.authority.split(";")[0]);
+                }
+            }
+        }
+        throw new PackageManager.NameNotFoundException("No injected provider in " + packageName);
+    }
+
+    private static String formatStartupTrace(JSONArray launches) throws JSONException {
+        if (launches.length() == 0) return "No launches recorded yet.";
+        DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM);
+        StringBuilder sb = new StringBuilder();
+        for (int i = launches.length() - 1; i >= 0; i--) {
+            JSONObject launch = launches.getJSONObject(i);
+            if (sb.length() > 0) sb.append("\n");
+            sb.append(dateFormat.format(new Date(launch.optLong("time", 0)))).append("\n");
+            long toProvider = launch.optLong("process_to_provider_ms", -1);
+            if (toProvider >= 0) sb.append("  Process start to hook: ").append(toProvider).append(" ms\n");
+            if (launch.has("main_thread_us")) {
+                sb.append("  Hook on main thread: ").append(formatMicros(launch.optLong("main_thread_us", 0))).append("\n");
+            }
+            JSONArray steps = launch.optJSONArray("steps");
+            for (int j = 0; steps != null && j < steps.length(); j++) {
+                JSONObject step = steps.getJSONObject(j);
+                sb.append("    ").append(step.optString("name")).append(": ")
+                        .append(formatMicros(step.optLong("us", 0)))
+                        .append(step.optBoolean("main", true) ? "" : " (background)").append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Busiest hooks first: calls, mean callback time per call, and p50/p99 per callback. */
+    private static String formatHookStats(JSONArray stats) throws JSONException {
+        List<JSONObject> sites = new ArrayList<>();
+        for (int i = 0; i < stats.length(); i++) sites.add(stats.getJSONObject(i));
+        if (sites.isEmpty()) return "No hooks installed.";
+        Collections.sort(sites, (a, b) -> Long.compare(b.optLong("calls", 0), a.optLong("calls", 0)));
+        StringBuilder sb = new StringBuilder();
+        for (JSONObject site : sites) {
+            long calls = site.optLong("calls", 0);
+            sb.append(site.optString("method")).append("\n  ").append(calls).append(" calls");
+            if (calls > 0) {
+                sb.append(", mean ").append(formatNanos(site.optLong("nanos", 0) / calls));
+                JSONArray buckets = site.optJSONArray("buckets");
+                if (buckets != null) {
+                    sb.append(", p50 < ").append(formatNanos(bucketPercentile(buckets, 0.50)))
+                            .append(", p99 < ").append(formatNanos(bucketPercentile(buckets, 0.99)));
+                }
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    /** Upper bound in ns of the power-of-two bucket holding the given fraction of samples. */
+    private static long bucketPercentile(JSONArray buckets, double fraction) {
+        long total = 0;
+        for (int i = 0; i < buckets.length(); i++) total += buckets.optLong(i, 0);
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.optLong(i, 0);
+            if (total > 0 && seen >= Math.ceil(total * fraction)) return 1L << i;
+        }
+        return 1L << (buckets.length() - 1);
+    }
+
+    private static String formatNanos(long ns) {
+        if (ns < 1000) return ns + " ns";
+        if (ns < 1000000) return String.format(Locale.US, "%.1f \u00b5s", ns / 1000.0);
+        return formatMicros(ns / 1000);
+    }
+
+    private static String formatMicros(long us) {
+        return String.format(Locale.US, "%.1f ms", us / 1000.0);
+    }
+
     private void confirmAndUninstallApp(AppInfo appInfo) {
         if (appInfo == null || appInfo.packageName == null || appInfo.packageName.trim().isEmpty()) {
             Toast.makeText(this, "Unable to determine which package to uninstall.", Toast.LENGTH_LONG).show();
@@ -2233,11 +2366,11 @@ public class MainActivity extends AppCompatActivity {
     private static class SelectedAppInfo {
         String packageName;
         String appName;
-        File cachedApkFile;
-        SelectedAppInfo(String packageName, String appName, File cachedApkFile) {
+        List<File> sourceApks;
+        SelectedAppInfo(String packageName, String appName, List<File> sourceApks) {
             this.packageName = packageName;
             this.appName = appName;
-            this.cachedApkFile = cachedApkFile;
+            this.sourceApks = sourceApks;
         }
     }
     private static class AppInfo {
@@ -2330,6 +2463,12 @@ public class MainActivity extends AppCompatActivity {
                                             startActivity(i);
                                         } else if (itemId == R.id.action_export_data) {
                                             triggerExportData(clickedApp.packageName);
+                                        } else if (itemId == R.id.action_startup_trace) {
+                                            showCloneReport(clickedApp, "startup_trace", "launches",
+                                                    "Startup trace", MainActivity::formatStartupTrace);
+                                        } else if (itemId == R.id.action_hook_stats) {
+                                            showCloneReport(clickedApp, "hook_stats", "stats",
+                                                    "Hook stats", MainActivity::formatHookStats);
                                         } else if (itemId == R.id.action_uninstall) {
                                             confirmAndUninstallApp(clickedApp);
                                         }
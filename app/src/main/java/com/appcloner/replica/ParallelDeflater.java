@@ -0,0 +1,253 @@
+package com.appcloner.replica;
+
+import com.android.apksig.util.DataSink;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates entry payloads on the shared {@link WorkerPool}.
+ * Inputs larger than {@link #BLOCK_SIZE} are cut into blocks that are compressed
+ * independently (each primed with the previous 32 KiB as a preset dictionary and closed
+ * with a sync flush), so their outputs concatenate into one valid raw deflate stream.
+ */
+final class ParallelDeflater {
+    static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int DICT_SIZE = 32 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Compressed blocks waiting to be written are held in memory; cap how many run ahead per job.
+    private static final int WINDOW = WorkerPool.THREADS * 2;
+
+    private ParallelDeflater() {}
+
+    static Job submit(byte[] data, int level) {
+        return new Job(new ArraySource(data), level);
+    }
+
+    static Job submit(File file, int level) throws IOException {
+        return new Job(new FileSource(file), level);
+    }
+
+    /**
+     * Compression of one entry. Blocks are submitted eagerly up to a small window and
+     * handed back in order by {@link #nextBlock()}.
+     */
+    static final class Job {
+        private final Source source;
+        private final int level;
+        private final int blockCount;
+        private final Future<Long> crc;
+        private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+        private int nextSubmit;
+        private boolean closed;
+
+        private Job(Source source, int level) {
+            this.source = source;
+            this.level = level;
+            long size = source.size();
+            this.blockCount = (int) Math.max(1, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            this.crc = WorkerPool.get().submit(source::crc);
+            fill();
+        }
+
+        long size() {
+            return source.size();
+        }
+
+        long crc() throws IOException {
+            return await(crc);
+        }
+
+        /** Next compressed block in stream order, or {@code null} once the stream is complete. */
+        byte[] nextBlock() throws IOException {
+            Future<byte[]> f = pending.poll();
+            if (f == null) {
+                // The CRC task reads the same source; let it finish before closing it
+                try {
+                    crc();
+                } finally {
+                    close();
+                }
+                return null;
+            }
+            byte[] block;
+            try {
+                block = await(f);
+            } catch (IOException e) {
+                cancel();
+                throw e;
+            }
+            fill();
+            return block;
+        }
+
+        /** Feeds the uncompressed payload to {@code sink}; call before the last block is taken. */
+        void inspect(DataSink sink) throws IOException {
+            long size = source.size();
+            for (long pos = 0; pos < size; pos += BLOCK_SIZE) {
+                int len = (int) Math.min(BLOCK_SIZE, size - pos);
+                sink.consume(source.read(pos, len), 0, len);
+            }
+        }
+
+        void cancel() {
+            for (Future<byte[]> f : pending) f.cancel(true);
+            pending.clear();
+            crc.cancel(true);
+            close();
+        }
+
+        private void fill() {
+            while (!closed && nextSubmit < blockCount && pending.size() < WINDOW) {
+                final int index = nextSubmit++;
+                pending.add(WorkerPool.get().submit(() -> deflateBlock(index)));
+            }
+        }
+
+        private byte[] deflateBlock(int index) throws IOException {
+            long start = (long) index * BLOCK_SIZE;
+            int len = (int) Math.min(BLOCK_SIZE, source.size() - start);
+            int dictLen = (int) Math.min(DICT_SIZE, start);
+            byte[] in = source.read(start - dictLen, dictLen + len);
+            boolean last = index == blockCount - 1;
+            Deflater deflater = new Deflater(level, true);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, len / 2));
+            byte[] buf = new byte[BUFFER_SIZE];
+            try {
+                if (dictLen > 0) deflater.setDictionary(in, 0, dictLen);
+                deflater.setInput(in, dictLen, len);
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(buf);
+                        out.write(buf, 0, n);
+                    }
+                } else {
+                    int n;
+                    do {
+                        n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                        out.write(buf, 0, n);
+                    } while (n == buf.length || !deflater.needsInput());
+                }
+            } finally {
+                deflater.end();
+            }
+            return out.toByteArray();
+        }
+
+        private void close() {
+            if (closed) return;
+            closed = true;
+            source.close();
+        }
+
+        private static <T> T await(Future<T> f) throws IOException {
+            try {
+                return f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                throw new IOException("Compression failed", cause);
+            }
+        }
+    }
+
+    private interface Source {
+        long size();
+        byte[] read(long offset, int length) throws IOException;
+        long crc() throws IOException;
+        void close();
+    }
+
+    private static final class ArraySource implements Source {
+        private final byte[] data;
+
+        ArraySource(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public long size() {
+            return data.length;
+        }
+
+        @Override
+        public byte[] read(long offset, int length) {
+            byte[] out = new byte[length];
+            System.arraycopy(data, (int) offset, out, 0, length);
+            return out;
+        }
+
+        @Override
+        public long crc() {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            return crc.getValue();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class FileSource implements Source {
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final long size;
+
+        FileSource(File file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            size = channel.size();
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public byte[] read(long offset, int length) throws IOException {
+            // Positional reads, so blocks can be read concurrently from one channel
+            byte[] out = new byte[length];
+            ByteBuffer b = ByteBuffer.wrap(out);
+            while (b.hasRemaining()) {
+                int n = channel.read(b, offset + b.position());
+                if (n < 0) throw new IOException("File shrank while compressing");
+            }
+            return out;
+        }
+
+        @Override
+        public long crc() throws IOException {
+            CRC32 crc = new CRC32();
+            long pos = 0;
+            while (pos < size) {
+                int len = (int) Math.min(BLOCK_SIZE, size - pos);
+                crc.update(read(pos, len), 0, len);
+                pos += len;
+            }
+            return crc.getValue();
+        }
+
+        @Override
+        public void close() {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
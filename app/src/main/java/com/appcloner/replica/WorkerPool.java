@@ -0,0 +1,35 @@
+package com.appcloner.replica;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide pool for CPU-bound APK work (deflating, signing digests), one thread per core.
+ * Tasks submitted here must never block waiting on other tasks in this pool.
+ */
+final class WorkerPool {
+    static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final ExecutorService POOL = newPool();
+
+    private WorkerPool() {}
+
+    static ExecutorService get() {
+        return POOL;
+    }
+
+    private static ExecutorService newPool() {
+        AtomicInteger n = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "apk-worker-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,177 @@
+package com.applisto.appcloner;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+import top.canyie.pine.Pine;
+import top.canyie.pine.callback.MethodHook;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What the hook adds to every call of a hooked method, measured on a device:
+ * SimplifiedHooking's callback dispatch before and after it stopped looking up CallFrame
+ * fields by reflection, and the cost of HookStats' counting and timing on one thread and
+ * on all cores at once. Results go to logcat under this class's name:
+ * {@code ./gradlew :hook:connectedAndroidTest}, then {@code adb logcat -s HookOverheadBenchmark}.
+ * Callbacks are invoked directly, so Pine's own bridge cost, the same either way, is left out.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HookOverheadBenchmark {
+    private static final String TAG = "HookOverheadBenchmark";
+    private static final int WARMUP_OPS = 200_000;
+    private static final int BATCH_OPS = 100_000;
+    private static final int BATCHES = 15;
+
+    private interface Op {
+        void run() throws Throwable;
+    }
+
+    private final Pine.CallFrame frame = newFrame();
+
+    @Test
+    public void callbackDispatch() throws Throwable {
+        final Inspecting callback = new Inspecting();
+        double reflective = nanosPerOp("dispatch, reflective fields", 1, new Op() {
+            @Override
+            public void run() throws Throwable {
+                // SimplifiedHooking's old dispatch, with the field names it meant to read
+                Object thisObject = reflectiveField(frame, "thisObject");
+                Object[] args = (Object[]) reflectiveField(frame, "args");
+                callback.before(thisObject, args, frame);
+            }
+        });
+        double direct = nanosPerOp("dispatch, direct fields", 1, new Op() {
+            @Override
+            public void run() throws Throwable {
+                callback.beforeCall(frame);
+            }
+        });
+        assertTrue("direct " + direct + " ns, reflective " + reflective + " ns", direct < reflective);
+    }
+
+    @Test
+    public void statsOverhead() throws Throwable {
+        measureStats(1);
+    }
+
+    @Test
+    public void statsOverheadAllCores() throws Throwable {
+        measureStats(Runtime.getRuntime().availableProcessors());
+    }
+
+    private void measureStats(int threads) throws Throwable {
+        final Inspecting bare = new Inspecting();
+        final MethodHook tracked = HookStats.track("HookOverheadBenchmark.target()", new Inspecting());
+        double plain = nanosPerOp("callbacks, " + threads + " thread(s), untracked", threads, new Op() {
+            @Override
+            public void run() throws Throwable {
+                bare.beforeCall(frame);
+                bare.afterCall(frame);
+            }
+        });
+        double counted = nanosPerOp("callbacks, " + threads + " thread(s), HookStats", threads, new Op() {
+            @Override
+            public void run() throws Throwable {
+                tracked.beforeCall(frame);
+                tracked.afterCall(frame);
+            }
+        });
+        Log.i(TAG, String.format(Locale.US, "HookStats adds %.1f ns per call with %d thread(s)",
+                counted - plain, threads));
+    }
+
+    /**
+     * Median time of one {@code op} over {@link #BATCHES} batches, after a warmup. With
+     * several threads each runs the batch at once and a batch lasts until the slowest is done.
+     */
+    private static double nanosPerOp(String name, int threads, Op op) throws Throwable {
+        for (int i = 0; i < WARMUP_OPS; i++) op.run();
+        double[] perOp = new double[BATCHES];
+        for (int b = 0; b < BATCHES; b++) {
+            perOp[b] = (double) timeBatch(threads, op) / BATCH_OPS;
+        }
+        Arrays.sort(perOp);
+        double median = perOp[BATCHES / 2];
+        Log.i(TAG, String.format(Locale.US, "%s: %.1f ns/op (min %.1f, max %.1f)",
+                name, median, perOp[0], perOp[BATCHES - 1]));
+        return median;
+    }
+
+    private static long timeBatch(int threads, final Op op) throws Throwable {
+        if (threads == 1) {
+            long start = System.nanoTime();
+            for (int i = 0; i < BATCH_OPS; i++) op.run();
+            return System.nanoTime() - start;
+        }
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        for (int i = 0; i < BATCH_OPS; i++) op.run();
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        if (failure[0] != null) throw failure[0];
+        return elapsed;
+    }
+
+    private static Object reflectiveField(Pine.CallFrame frame, String name) throws Exception {
+        Field field = Pine.CallFrame.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(frame);
+    }
+
+    private static Pine.CallFrame newFrame() {
+        try {
+            Method target = HookOverheadBenchmark.class.getDeclaredMethod("target", String.class);
+            return new Pine.CallFrame(new Pine.HookRecord(target, 0), new Object(), new Object[] { "arg" });
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static void target(String arg) {
+    }
+
+    /*
+     * About the least a real callback does: look at the arguments. It writes nothing shared,
+     * so threads only contend where HookStats makes them.
+     */
+    private static final class Inspecting extends SimplifiedHooking.HookCallback {
+        @Override
+        public void before(Object thisObject, Object[] args, Pine.CallFrame callFrame) {
+            if (args.length == 0) throw new AssertionError("no args");
+        }
+
+        @Override
+        public void after(Object thisObject, Object[] args, Pine.CallFrame callFrame) {
+            if (args.length == 0) throw new AssertionError("no args");
+        }
+    }
+}
@@ -39,6 +39,10 @@ public abstract class AbstractContentProvider extends ContentProvider {
                     String key = extras.getString("key");
                     return removePref(file, key);
                 }
+                case "startup_trace":
+                    return StartupTrace.dump(getContext());
+                case "hook_stats":
+                    return HookStats.snapshot();
             }
         } catch (Exception e) {
             Log.w(TAG, e);
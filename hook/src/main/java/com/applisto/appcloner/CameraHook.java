@@ -513,7 +513,7 @@ public final class CameraHook {
                     android.hardware.Camera.PictureCallback.class,
                     android.hardware.Camera.PictureCallback.class
             );
-            Pine.hook(m, new MethodHook() {
+            HookStats.hook(m, new MethodHook() {
                 @Override public void beforeCall(CallFrame cf) {
                     Log.i(TAG, "Camera1 4-arg takePicture INTERCEPTED");
                     injectCamera1((Camera) cf.thisObject,
@@ -536,7 +536,7 @@ public final class CameraHook {
                     android.hardware.Camera.PictureCallback.class,
                     android.hardware.Camera.PictureCallback.class
             );
-            Pine.hook(m, new MethodHook() {
+            HookStats.hook(m, new MethodHook() {
                 @Override public void beforeCall(CallFrame cf) {
                     Log.i(TAG, "Camera1 3-arg takePicture INTERCEPTED");
                     injectCamera1((Camera) cf.thisObject,
@@ -558,7 +558,7 @@ public final class CameraHook {
                     android.hardware.Camera.ShutterCallback.class,
                     android.hardware.Camera.PictureCallback.class
             );
-            Pine.hook(m, new MethodHook() {
+            HookStats.hook(m, new MethodHook() {
                 @Override public void beforeCall(CallFrame cf) {
                     Log.i(TAG, "Camera1 2-arg takePicture INTERCEPTED");
                     injectCamera1((Camera) cf.thisObject,
@@ -651,8 +651,8 @@ public final class CameraHook {
         };
         try {
             Class<?> ir = ImageReader.class;
-            Pine.hook(ir.getDeclaredMethod("acquireLatestImage"), acquireHook);
-            Pine.hook(ir.getDeclaredMethod("acquireNextImage"), acquireHook);
+            HookStats.hook(ir.getDeclaredMethod("acquireLatestImage"), acquireHook);
+            HookStats.hook(ir.getDeclaredMethod("acquireNextImage"), acquireHook);
         } catch (Throwable t) {
             Log.e(TAG, "Camera2 hook failed", t);
         }
@@ -724,7 +724,7 @@ public final class CameraHook {
         // Camera1 open(int)
         try {
             Method openInt = Camera.class.getDeclaredMethod("open", int.class);
-            Pine.hook(openInt, new MethodHook() {
+            HookStats.hook(openInt, new MethodHook() {
                 @Override public void afterCall(CallFrame cf) {
                     try {
                         int cameraId = (int) cf.args[0];
@@ -758,7 +758,7 @@ public final class CameraHook {
             Class<?> cmClass = Class.forName("android.hardware.camera2.CameraManager");
             Class<?> cbClass = Class.forName("android.hardware.camera2.CameraDevice$StateCallback");
             Method openCam = cmClass.getDeclaredMethod("openCamera", String.class, cbClass, android.os.Handler.class);
-            Pine.hook(openCam, new MethodHook() {
+            HookStats.hook(openCam, new MethodHook() {
                 @Override public void beforeCall(CallFrame cf) {
                     try {
                         String cameraId = (String) cf.args[0];
@@ -1,36 +1,190 @@
 package com.applisto.appcloner;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
 import android.util.Log;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
+/**
+ * The clone's settings, loaded once and shared by every module. The cloner compiles
+ * cloner.json into cloner.bin (see ClonerConfigBlob in the app), stored uncompressed, so
+ * this maps it out of the APK and reads typed values without parsing any JSON. Clones built
+ * before cloner.bin existed fall back to cloner.json.
+ */
 public final class ClonerSettings {
+    private static final String TAG = "ClonerSettings";
     private static final String FILE = "cloner.json";
-    private static ClonerSettings INSTANCE;
-    private final JSONObject cfg;
+    private static final String BIN_FILE = "cloner.bin";
+
+    /* cloner.bin layout; keep in sync with ClonerConfigBlob */
+    private static final int MAGIC = 0x41434231;
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_BOOLEAN = 1;
+    private static final int TYPE_LONG = 2;
+    private static final int TYPE_DOUBLE = 3;
+    private static final int TYPE_STRING = 4;
+    private static final int TYPE_JSON = 5;
+
+    private static volatile ClonerSettings INSTANCE;
+
+    /* Boolean, Long, Double or String; nested JSON is kept as its text */
+    private final Map<String, Object> values;
+    private JSONObject json;
 
     private ClonerSettings(Context c) {
-        try (InputStream in = c.getAssets().open(FILE)) {
-            byte[] buf = new byte[in.available()];
-            in.read(buf);
-            cfg = new JSONObject(new String(buf));
-        } catch (Exception e) {
-            throw new RuntimeException("Cannot load " + FILE, e);
+        AssetManager assets = c.getAssets();
+        Map<String, Object> v;
+        try {
+            v = decode(openBlob(assets));
+        } catch (FileNotFoundException e) {
+            Log.i(TAG, "No " + BIN_FILE + ", reading " + FILE);
+            v = readJson(assets);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unreadable " + BIN_FILE + ", falling back to " + FILE, e);
+            v = readJson(assets);
         }
+        values = v;
     }
 
-    public static synchronized ClonerSettings get(Context c) {
-        if (INSTANCE == null) INSTANCE = new ClonerSettings(c);
-        return INSTANCE;
+    public static ClonerSettings get(Context c) {
+        ClonerSettings s = INSTANCE;
+        if (s != null) return s;
+        synchronized (ClonerSettings.class) {
+            if (INSTANCE == null) INSTANCE = new ClonerSettings(c);
+            return INSTANCE;
+        }
+    }
+
+    /* typed getters; a missing key or a value of another type gives the default */
+    public String getString(String key, String def) {
+        Object v = values.get(key);
+        return v != null ? v.toString() : def;
+    }
+
+    public long getLong(String key, long def) {
+        Object v = values.get(key);
+        return v instanceof Number ? ((Number) v).longValue() : def;
+    }
+
+    public int getInt(String key, int def) {
+        Object v = values.get(key);
+        return v instanceof Number ? ((Number) v).intValue() : def;
+    }
+
+    public double getDouble(String key, double def) {
+        Object v = values.get(key);
+        return v instanceof Number ? ((Number) v).doubleValue() : def;
+    }
+
+    public boolean getBoolean(String key, boolean def) {
+        Object v = values.get(key);
+        return v instanceof Boolean ? (Boolean) v : def;
     }
 
     /* helpers for single-value getters */
-    public String androidId() { return cfg.optString("android_id"); }
-    public String wifiMac()   { return cfg.optString("wifi_mac");   }
+    public String androidId() { return getString("android_id", ""); }
+    public String wifiMac()   { return getString("wifi_mac", "");   }
+
+    public String socksProxyHost() { return getString("socks_proxy_host", "").trim(); }
+    public int    socksProxyPort() { return getInt("socks_proxy_port", 0); }
+    public String socksProxyUser() { return getString("socks_proxy_user", ""); }
+    public String socksProxyPass() { return getString("socks_proxy_pass", ""); }
 
-    /* give BuildPropsHook raw access to the JSON object */
-    public JSONObject raw()   { return cfg; }
-}
\ No newline at end of file
+    /* feature modules; the cloner leaves the camera's classes out of the hook dex when it is off */
+    public boolean fakeCameraEnabled() { return getBoolean("fake_camera", true); }
+    public boolean socksProxyEnabled() { return !socksProxyHost().isEmpty(); }
+
+    /* JSON view for code that still wants one; built on first use */
+    public synchronized JSONObject raw() {
+        if (json == null) json = new JSONObject(values);
+        return json;
+    }
+
+    /* ---------------- loading ---------------- */
+    private static ByteBuffer openBlob(AssetManager assets) throws IOException {
+        try (AssetFileDescriptor fd = assets.openFd(BIN_FILE);
+             FileInputStream in = new FileInputStream(fd.getFileDescriptor())) {
+            // The descriptor is the whole APK; createInputStream()'s channel may already be
+            // offset to the asset on newer platforms, so map from the raw one. The mapping
+            // outlives the channel.
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength());
+        } catch (FileNotFoundException compressedOrMissing) {
+            // openFd fails for compressed assets too; read those through the stream
+            try (InputStream in = assets.open(BIN_FILE)) {
+                return ByteBuffer.wrap(readFully(in));
+            }
+        }
+    }
+
+    private static Map<String, Object> decode(ByteBuffer b) throws IOException {
+        if (b.remaining() < 6 || b.getInt() != MAGIC) throw new IOException("Not a compiled cloner config");
+        int count = b.getShort() & 0xffff;
+        Map<String, Object> values = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            String key = utf8(b, b.getShort() & 0xffff);
+            int type = b.get();
+            switch (type) {
+                case TYPE_NULL:    break;
+                case TYPE_BOOLEAN: values.put(key, b.get() != 0); break;
+                case TYPE_LONG:    values.put(key, b.getLong()); break;
+                case TYPE_DOUBLE:  values.put(key, b.getDouble()); break;
+                case TYPE_STRING:
+                case TYPE_JSON:    values.put(key, utf8(b, b.getInt())); break;
+                default: throw new IOException("Unknown value type " + type + " for " + key);
+            }
+        }
+        return values;
+    }
+
+    private static String utf8(ByteBuffer b, int length) {
+        byte[] bytes = new byte[length];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, Object> readJson(AssetManager assets) {
+        try (InputStream in = assets.open(FILE)) {
+            JSONObject cfg = new JSONObject(new String(readFully(in), StandardCharsets.UTF_8));
+            Map<String, Object> values = new HashMap<>();
+            for (Iterator<String> it = cfg.keys(); it.hasNext(); ) {
+                String key = it.next();
+                Object v = cfg.opt(key);
+                if (v == null || v == JSONObject.NULL) continue;
+                if (v instanceof Integer || v instanceof Long) {
+                    v = ((Number) v).longValue();
+                } else if (v instanceof Number) {
+                    v = ((Number) v).doubleValue();
+                } else if (v instanceof JSONObject || v instanceof JSONArray) {
+                    v = v.toString();
+                }
+                values.put(key, v);
+            }
+            return values;
+        } catch (Exception e) {
+            throw new RuntimeException("Cannot load " + FILE, e);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,157 @@
+package com.applisto.appcloner;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import top.canyie.pine.Pine;
+
+/**
+ * The hook's feature modules and when they install. EARLY modules run inside
+ * DefaultProvider.onCreate, before any app code, because they must be in place before the
+ * app touches what they hook. DEFERRED modules run on a background thread once the provider
+ * has returned; {@link #awaitReady(long)} is the barrier for code that needs them. Modules the
+ * settings turn off are skipped, so a clone with few features starts almost as fast as the
+ * original app.
+ */
+final class HookModules {
+    private static final String TAG = "HookModules";
+
+    enum Phase { EARLY, DEFERRED }
+
+    abstract static class Module {
+        /* same names as the cloner's HookSlimmer modules */
+        final String name;
+        final Phase phase;
+
+        Module(String name, Phase phase) {
+            this.name = name;
+            this.phase = phase;
+        }
+
+        /* settings is null when they could not be read; modules then fall back to their default */
+        abstract boolean isEnabled(ClonerSettings settings);
+
+        abstract void install(Context context) throws Exception;
+    }
+
+    /*
+     * Install order within a phase. A module's classes are only named in its install(), so
+     * one the cloner left out of the dex is never loaded.
+     */
+    private static final List<Module> MODULES = Arrays.asList(
+            // Camera hooks first, then activity interception for fake camera apps
+            new Module("camera", Phase.EARLY) {
+                @Override boolean isEnabled(ClonerSettings s) { return s == null || s.fakeCameraEnabled(); }
+
+                @Override void install(Context context) {
+                    CameraHook.install(context);
+                    FakeCameraAppSupport.setup(context);
+                }
+            },
+            // Sockets may be opened from Application.onCreate, so the proxy cannot wait
+            new Module("socks_proxy", Phase.EARLY) {
+                @Override boolean isEnabled(ClonerSettings s) { return s == null || s.socksProxyEnabled(); }
+
+                @Override void install(Context context) {
+                    Socks5ProxyHook.initEarly(context);
+                }
+            },
+            // The manifest already declares the receiver; this registration is only a backup
+            new Module("data_export", Phase.DEFERRED) {
+                @Override boolean isEnabled(ClonerSettings s) { return true; }
+
+                @Override void install(Context context) {
+                    DefaultProvider.registerExportReceiver(context);
+                }
+            });
+
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+    private static final CountDownLatch READY = new CountDownLatch(1);
+
+    private HookModules() {}
+
+    /** Installs the enabled EARLY modules now and starts the DEFERRED ones in the background. */
+    static void install(final Context context) {
+        if (!STARTED.compareAndSet(false, true)) return;
+        final long start = StartupTrace.now();
+        StartupTrace.begin();
+        ClonerSettings settings = null;
+        try {
+            settings = ClonerSettings.get(context);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cloner settings unavailable, enabling all modules", e);
+        }
+        StartupTrace.step("settings", start);
+
+        List<Module> early = new ArrayList<>();
+        final List<Module> deferred = new ArrayList<>();
+        for (Module m : MODULES) {
+            if (!m.isEnabled(settings)) {
+                Log.i(TAG, "Module " + m.name + " disabled");
+            } else {
+                (m.phase == Phase.EARLY ? early : deferred).add(m);
+            }
+        }
+        // Timed on its own so module steps show only their own hooks
+        if (!early.isEmpty()) initPine();
+        for (Module m : early) run(m, context);
+        final long mainThread = StartupTrace.now() - start;
+
+        // Also saves the startup trace, so it runs even with nothing deferred
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    for (Module m : deferred) HookModules.run(m, context);
+                } finally {
+                    READY.countDown();
+                }
+                StartupTrace.finish(context, mainThread);
+            }
+        }, "HookModules-deferred");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Waits until the DEFERRED modules have installed; false on timeout or interrupt. */
+    static boolean awaitReady(long timeoutMs) {
+        try {
+            return READY.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void initPine() {
+        long start = StartupTrace.now();
+        try {
+            Pine.ensureInitialized();
+        } catch (Throwable t) {
+            Log.e(TAG, "Pine initialization failed", t);
+        }
+        StartupTrace.step("pine_init", start);
+    }
+
+    private static void run(Module m, Context context) {
+        long start = StartupTrace.now();
+        try {
+            m.install(context);
+            Log.i(TAG, "Module " + m.name + " installed in " + (StartupTrace.now() - start) / 1000000 + " ms");
+        } catch (NoClassDefFoundError e) {
+            Log.w(TAG, "Module " + m.name + " is not part of this clone; re-clone to enable it");
+        } catch (Throwable t) {
+            Log.e(TAG, "Module " + m.name + " failed to install", t);
+        }
+        StartupTrace.step("module:" + m.name, start);
+    }
+}
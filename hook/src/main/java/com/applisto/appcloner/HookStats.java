@@ -0,0 +1,150 @@
+package com.applisto.appcloner;
+
+import android.os.Bundle;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import top.canyie.pine.Pine;
+import top.canyie.pine.callback.MethodHook;
+
+/**
+ * How often each hook fires and how long its callbacks take, cheap enough to leave on.
+ * Every hook goes through {@link #hook(Member, MethodHook)}, which wraps the callback.
+ * Counters and the histogram of callback times (power-of-two nanosecond buckets) are
+ * striped by thread, so concurrent hits rarely touch the same cache line. The cloner app
+ * reads a snapshot through the provider's "hook_stats" call.
+ */
+final class HookStats {
+    /* bucket i holds times in [2^(i-1), 2^i) ns; the last one everything from ~1 s up */
+    static final int BUCKETS = 32;
+    private static final int STRIPES = 8;
+    /* a stripe's slots: calls, nanos, then the buckets */
+    private static final int CALLS = 0;
+    private static final int NANOS = 1;
+    private static final int FIRST_BUCKET = 2;
+    // A cache line of longs. The array's start is not line-aligned, so stripes are kept a
+    // full line apart (and the first a line in) rather than rounded to line boundaries.
+    private static final int PAD = 8;
+    private static final int STRIDE = FIRST_BUCKET + BUCKETS + PAD;
+
+    private static final ConcurrentMap<String, Site> SITES = new ConcurrentHashMap<>();
+
+    private HookStats() {}
+
+    /** Pine.hook with the callback counted and timed. */
+    static MethodHook.Unhook hook(Member target, MethodHook callback) {
+        return Pine.hook(target, track(name(target), callback));
+    }
+
+    /** {@code callback}, counted and timed under {@code name}. */
+    static MethodHook track(String name, MethodHook callback) {
+        Site site = SITES.get(name);
+        if (site == null) {
+            Site fresh = new Site();
+            site = SITES.putIfAbsent(name, fresh);
+            if (site == null) site = fresh;
+        }
+        return new Tracked(site, callback);
+    }
+
+    /**
+     * One entry per hooked method, as a JSON array under "stats". Buckets count callback
+     * phases, so a hook with both callbacks adds two samples per call.
+     */
+    static Bundle snapshot() {
+        JSONArray stats = new JSONArray();
+        try {
+            for (ConcurrentMap.Entry<String, Site> e : SITES.entrySet()) {
+                Site s = e.getValue();
+                JSONArray buckets = new JSONArray();
+                for (int i = 0; i < BUCKETS; i++) buckets.put(s.sum(FIRST_BUCKET + i));
+                stats.put(new JSONObject()
+                        .put("method", e.getKey())
+                        .put("calls", s.sum(CALLS))
+                        .put("nanos", s.sum(NANOS))
+                        .put("buckets", buckets));
+            }
+        } catch (Exception ignored) {
+        }
+        Bundle b = new Bundle();
+        b.putString("stats", stats.toString());
+        return b;
+    }
+
+    private static String name(Member m) {
+        StringBuilder sb = new StringBuilder(m.getDeclaringClass().getSimpleName()).append('.')
+                .append(m instanceof Constructor ? "<init>" : m.getName()).append('(');
+        Class<?>[] params = m instanceof Method
+                ? ((Method) m).getParameterTypes() : ((Constructor<?>) m).getParameterTypes();
+        for (int i = 0; i < params.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(params[i].getSimpleName());
+        }
+        return sb.append(')').toString();
+    }
+
+    private static final class Site {
+        final AtomicLongArray stripes = new AtomicLongArray(PAD + STRIPES * STRIDE);
+
+        void call() {
+            stripes.getAndIncrement(stripe() + CALLS);
+        }
+
+        void time(long nanos) {
+            int stripe = stripe();
+            stripes.getAndAdd(stripe + NANOS, nanos);
+            int bucket = 64 - Long.numberOfLeadingZeros(nanos);
+            stripes.getAndIncrement(stripe + FIRST_BUCKET + (bucket < BUCKETS ? bucket : BUCKETS - 1));
+        }
+
+        long sum(int slot) {
+            long total = 0;
+            for (int i = 0; i < STRIPES; i++) total += stripes.get(PAD + i * STRIDE + slot);
+            return total;
+        }
+
+        private static int stripe() {
+            return PAD + ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+        }
+    }
+
+    /* Times each callback phase on its own; a call is counted once, in beforeCall */
+    private static final class Tracked extends MethodHook {
+        private final Site site;
+        private final MethodHook callback;
+
+        Tracked(Site site, MethodHook callback) {
+            this.site = site;
+            this.callback = callback;
+        }
+
+        @Override
+        public void beforeCall(Pine.CallFrame callFrame) throws Throwable {
+            site.call();
+            long start = System.nanoTime();
+            try {
+                callback.beforeCall(callFrame);
+            } finally {
+                site.time(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public void afterCall(Pine.CallFrame callFrame) throws Throwable {
+            long start = System.nanoTime();
+            try {
+                callback.afterCall(callFrame);
+            } finally {
+                site.time(System.nanoTime() - start);
+            }
+        }
+    }
+}
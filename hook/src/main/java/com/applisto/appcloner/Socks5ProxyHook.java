@@ -4,15 +4,11 @@ import android.content.Context;
 import android.text.TextUtils;
 import android.util.Log;
 
-import org.json.JSONObject;
-
-import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.net.*;
 import javax.net.SocketFactory;
 
-import top.canyie.pine.Pine;
 import top.canyie.pine.callback.MethodHook;
 import top.canyie.pine.Pine.CallFrame;  // ← NEW LINE
 
@@ -50,17 +46,14 @@ public final class Socks5ProxyHook {
 
     /* ---------------- settings ---------------- */
     private static void loadSettings(Context ctx) {
-        try (InputStream in = ctx.getAssets().open("cloner.json")) {
-            byte[] buf = new byte[in.available()];
-            in.read(buf);
-            JSONObject j = new JSONObject(new String(buf));
-
-            proxyHost = j.optString("socks_proxy_host", "");
-            proxyPort = j.optInt   ("socks_proxy_port", 0);
-            proxyUser = j.optString("socks_proxy_user", "");
-            proxyPass = j.optString("socks_proxy_pass", "");
+        try {
+            ClonerSettings settings = ClonerSettings.get(ctx);
+            proxyHost = settings.socksProxyHost();
+            proxyPort = settings.socksProxyPort();
+            proxyUser = settings.socksProxyUser();
+            proxyPass = settings.socksProxyPass();
         } catch (Throwable t) {
-            Log.w(TAG, "Unable to read cloner.json", t);
+            Log.w(TAG, "Unable to read cloner settings", t);
         }
     }
 
@@ -85,7 +78,7 @@ public final class Socks5ProxyHook {
     private static void hookSocketConstructors() {
         try {
             for (Constructor<?> ctor : Socket.class.getDeclaredConstructors()) {
-                Pine.hook(ctor, new MethodHook() {
+                HookStats.hook(ctor, new MethodHook() {
                     @Override
                     public void afterCall(CallFrame cf) {
                         cf.setResult(newProxiedSocket());
@@ -102,14 +95,14 @@ public final class Socks5ProxyHook {
         try {
             /* 1) createSocket() */
             Method m0 = SocketFactory.class.getDeclaredMethod("createSocket");
-            Pine.hook(m0, new MethodHook() {
+            HookStats.hook(m0, new MethodHook() {
                 @Override public void afterCall(CallFrame cf) { cf.setResult(newProxiedSocket()); }
             });
 
             /* 2) createSocket(String,int) */
             Method m1 = SocketFactory.class.getDeclaredMethod(
                     "createSocket", String.class, int.class);
-            Pine.hook(m1, new MethodHook() {
+            HookStats.hook(m1, new MethodHook() {
                 @Override public void beforeCall(CallFrame cf) throws Throwable {
                     String host = (String) cf.args[0];
                     int    port = (int)    cf.args[1];
@@ -122,7 +115,7 @@ public final class Socks5ProxyHook {
             /* 3) createSocket(InetAddress,int) */
             Method m2 = SocketFactory.class.getDeclaredMethod(
                     "createSocket", InetAddress.class, int.class);
-            Pine.hook(m2, new MethodHook() {
+            HookStats.hook(m2, new MethodHook() {
                 @Override public void beforeCall(CallFrame cf) throws Throwable {
                     InetAddress addr = (InetAddress) cf.args[0];
                     int         port = (int)        cf.args[1];
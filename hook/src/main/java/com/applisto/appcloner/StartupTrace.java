@@ -0,0 +1,124 @@
+package com.applisto.appcloner;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What the hook adds to a clone's cold start. Steps are timed on the monotonic
+ * elapsedRealtime clock; the launch is saved once the deferred modules are done, and the
+ * last {@link #MAX_LAUNCHES} launches are kept for the cloner app's "startup_trace" call.
+ */
+final class StartupTrace {
+    private static final String TAG = "StartupTrace";
+    private static final String FILE = "appcloner_startup_trace.json";
+    static final int MAX_LAUNCHES = 10;
+
+    private static final JSONObject LAUNCH = new JSONObject();
+    private static final JSONArray STEPS = new JSONArray();
+    private static boolean saved;
+
+    private StartupTrace() {}
+
+    static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /** Marks provider init; records how long the process ran before the hook got control. */
+    static synchronized void begin() {
+        try {
+            LAUNCH.put("time", System.currentTimeMillis());
+            if (Build.VERSION.SDK_INT >= 24) {
+                LAUNCH.put("process_to_provider_ms", SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime());
+            }
+            LAUNCH.put("steps", STEPS);
+        } catch (Exception ignored) {
+        }
+    }
+
+    /** Records a step that started at {@code startNanos} (from {@link #now()}) and ends now. */
+    static synchronized void step(String name, long startNanos) {
+        long us = (now() - startNanos) / 1000;
+        try {
+            STEPS.put(new JSONObject()
+                    .put("name", name)
+                    .put("main", isMainThread())
+                    .put("us", us));
+        } catch (Exception ignored) {
+        }
+    }
+
+    /** Records the main-thread total and writes the launch out; later calls do nothing. */
+    static synchronized void finish(Context context, long mainThreadNanos) {
+        if (saved) return;
+        saved = true;
+        try {
+            LAUNCH.put("main_thread_us", mainThreadNanos / 1000);
+            JSONArray launches = read(context);
+            JSONArray kept = new JSONArray();
+            for (int i = Math.max(0, launches.length() - (MAX_LAUNCHES - 1)); i < launches.length(); i++) {
+                kept.put(launches.get(i));
+            }
+            kept.put(LAUNCH);
+            write(context, kept);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not save startup trace", e);
+        }
+    }
+
+    /** Saved launches, oldest first, as a JSON array under "launches". */
+    static synchronized Bundle dump(Context context) {
+        Bundle b = new Bundle();
+        JSONArray launches = read(context);
+        if (!saved) launches.put(LAUNCH);
+        b.putString("launches", launches.toString());
+        return b;
+    }
+
+    private static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    private static File file(Context context) {
+        return new File(context.getNoBackupFilesDir(), FILE);
+    }
+
+    private static JSONArray read(Context context) {
+        File f = file(context);
+        if (!f.exists()) return new JSONArray();
+        try (InputStream in = new FileInputStream(f)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+            return new JSONArray(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            Log.w(TAG, "Discarding unreadable startup trace", e);
+            return new JSONArray();
+        }
+    }
+
+    private static void write(Context context, JSONArray launches) throws IOException {
+        File f = file(context);
+        File tmp = new File(f.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(launches.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (!tmp.renameTo(f)) throw new IOException("Cannot replace " + f);
+    }
+}